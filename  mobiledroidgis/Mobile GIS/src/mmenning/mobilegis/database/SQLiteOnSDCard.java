@@ -78,6 +78,17 @@ public abstract class SQLiteOnSDCard {
 		}
 	}
 
+	/**
+	 * Get the folder the databases are stored in.
+	 * 
+	 * @param context
+	 *            Context whose package name names the folder
+	 * @return the folder, it may not exist yet
+	 */
+	public static File getDirectory(Context context) {
+		return new File(SDCARD + File.separator + context.getPackageName());
+	}
+
 	/**
 	 * Close the database connection if it is not closed yet.
 	 */
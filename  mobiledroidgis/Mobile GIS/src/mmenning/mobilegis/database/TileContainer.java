@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2010 by Mathias Menninghaus (mmenning (at) uos (dot) de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package mmenning.mobilegis.database;
+
+import java.io.File;
+import java.io.FileFilter;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Read only access to the tiles of a single file SQLite tile container, either
+ * MBTiles or the first tile table of a GeoPackage. Tiles are addressed in the
+ * z/x/y scheme of the spherical mercator projection (EPSG:3857), rows counted
+ * from the north, with 256 x 256 pixels per tile.
+ *
+ * Containers are looked up in the folder of the {@link SQLiteOnSDCard}
+ * databases and recognized by their file extension. A closed container is
+ * opened again when the next tile is read.
+ *
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ */
+public class TileContainer {
+
+	private static final String DT = "TileContainer";
+
+	public static final String MBTILES = ".mbtiles";
+	public static final String GEOPACKAGE = ".gpkg";
+
+	/**
+	 * Half the circumference of the earth in EPSG:3857 meters
+	 */
+	private static final double EXTENT = 20037508.342789244;
+
+	private static final int TILE_SIZE = 256;
+
+	/**
+	 * Highest zoom level which can be addressed
+	 */
+	private static final int MAX_ZOOM = 30;
+
+	private final String path;
+
+	private SQLiteDatabase db;
+
+	private String name;
+
+	/**
+	 * query for the data of a tile, the arguments are the zoom level, column
+	 * and row within the container
+	 */
+	private String tileQuery;
+
+	/**
+	 * true if rows are counted from the south (MBTiles)
+	 */
+	private boolean tms;
+
+	/**
+	 * zoom level in the container for every zoom level of the map, -1 if the
+	 * container has no tiles for it
+	 */
+	private final int[] zoomLevels;
+
+	/**
+	 * first column and row of the container for every zoom level of the map
+	 */
+	private final int[] columnOffsets;
+	private final int[] rowOffsets;
+
+	/**
+	 * Open a tile container.
+	 *
+	 * @param path
+	 *            absolute path of the file
+	 * @throws SQLException
+	 *             if the file is neither MBTiles nor a GeoPackage with tiles
+	 *             in EPSG:3857
+	 */
+	public TileContainer(String path) throws SQLException {
+		this.path = path;
+		this.zoomLevels = new int[MAX_ZOOM + 1];
+		this.columnOffsets = new int[MAX_ZOOM + 1];
+		this.rowOffsets = new int[MAX_ZOOM + 1];
+		for (int i = 0; i <= MAX_ZOOM; i++) {
+			zoomLevels[i] = -1;
+		}
+		this.db = open();
+		try {
+			if (path.toLowerCase().endsWith(GEOPACKAGE)) {
+				openGeoPackage();
+			} else {
+				openMBTiles();
+			}
+		} catch (SQLException e) {
+			db.close();
+			throw e;
+		}
+	}
+
+	private SQLiteDatabase open() throws SQLException {
+		return SQLiteDatabase.openDatabase(path, null,
+				SQLiteDatabase.OPEN_READONLY
+						| SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+	}
+
+	private void openMBTiles() {
+		tms = true;
+		tileQuery = "SELECT tile_data FROM tiles WHERE zoom_level=?"
+				+ " AND tile_column=? AND tile_row=?";
+
+		Cursor c = db.rawQuery("SELECT value FROM metadata WHERE name=?",
+				new String[] { "name" });
+		if (c.moveToFirst()) {
+			name = c.getString(0);
+		}
+		c.close();
+
+		c = db.rawQuery("SELECT DISTINCT zoom_level FROM tiles", null);
+		while (c.moveToNext()) {
+			int zoom = c.getInt(0);
+			if (zoom >= 0 && zoom <= MAX_ZOOM) {
+				zoomLevels[zoom] = zoom;
+			}
+		}
+		c.close();
+	}
+
+	private void openGeoPackage() {
+		tms = false;
+
+		String table = null;
+		Cursor c = db.rawQuery("SELECT table_name, identifier FROM"
+				+ " gpkg_contents WHERE data_type=?", new String[] { "tiles" });
+		if (c.moveToFirst()) {
+			table = c.getString(0);
+			name = c.getString(1);
+		}
+		c.close();
+		if (table == null) {
+			throw new SQLException("no tile table in " + path);
+		}
+		tileQuery = "SELECT tile_data FROM \"" + table
+				+ "\" WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+
+		double minX;
+		double maxY;
+		c = db.rawQuery("SELECT m.min_x, m.max_y, s.organization_coordsys_id"
+				+ " FROM gpkg_tile_matrix_set m JOIN gpkg_spatial_ref_sys s"
+				+ " ON m.srs_id=s.srs_id WHERE m.table_name=?",
+				new String[] { table });
+		try {
+			if (!c.moveToFirst() || c.getInt(2) != 3857) {
+				throw new SQLException("tiles of " + path
+						+ " are not in EPSG:3857");
+			}
+			minX = c.getDouble(0);
+			maxY = c.getDouble(1);
+		} finally {
+			c.close();
+		}
+
+		/*
+		 * the zoom levels of a GeoPackage may be numbered arbitrarily, they
+		 * are identified by their resolution
+		 */
+		c = db.rawQuery("SELECT zoom_level, pixel_x_size, tile_width,"
+				+ " tile_height FROM gpkg_tile_matrix WHERE table_name=?",
+				new String[] { table });
+		while (c.moveToNext()) {
+			if (c.getInt(2) != TILE_SIZE || c.getInt(3) != TILE_SIZE) {
+				continue;
+			}
+			int zoom = (int) Math.round(Math.log(2 * EXTENT
+					/ (c.getDouble(1) * TILE_SIZE))
+					/ Math.log(2));
+			if (zoom >= 0 && zoom <= MAX_ZOOM) {
+				double span = 2 * EXTENT / (1L << zoom);
+				zoomLevels[zoom] = c.getInt(0);
+				columnOffsets[zoom] = (int) Math.round((minX + EXTENT) / span);
+				rowOffsets[zoom] = (int) Math.round((EXTENT - maxY) / span);
+			}
+		}
+		c.close();
+	}
+
+	/**
+	 * Get all tile containers stored next to the SQLiteOnSDCard databases.
+	 *
+	 * @param context
+	 *            Context of the databases
+	 * @return the files, maybe empty
+	 */
+	public static File[] list(Context context) {
+		File[] ret = SQLiteOnSDCard.getDirectory(context).listFiles(
+				new FileFilter() {
+					public boolean accept(File f) {
+						String name = f.getName().toLowerCase();
+						return f.isFile()
+								&& (name.endsWith(MBTILES) || name
+										.endsWith(GEOPACKAGE));
+					}
+				});
+		return ret == null ? new File[0] : ret;
+	}
+
+	/**
+	 * @return absolute path of the file
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the name stored in the container, or the file name if there is
+	 *         none
+	 */
+	public String getName() {
+		return name != null ? name : new File(path).getName();
+	}
+
+	/**
+	 * Read the encoded image of a tile.
+	 *
+	 * @param zoom
+	 *            zoom level of the map
+	 * @param column
+	 *            column, counted from 180 degrees west
+	 * @param row
+	 *            row, counted from the north
+	 * @return the encoded image or null if the container does not contain
+	 *         the tile
+	 * @throws SQLException
+	 *             if the container cannot be read
+	 */
+	public synchronized byte[] getTile(int zoom, int column, int row)
+			throws SQLException {
+		if (zoom < 0 || zoom > MAX_ZOOM || zoomLevels[zoom] < 0) {
+			return null;
+		}
+		column -= columnOffsets[zoom];
+		row = tms ? (1 << zoom) - 1 - row : row - rowOffsets[zoom];
+		if (column < 0 || row < 0) {
+			return null;
+		}
+
+		if (!db.isOpen()) {
+			db = open();
+		}
+		byte[] ret = null;
+		Cursor c = db.rawQuery(tileQuery, new String[] {
+				String.valueOf(zoomLevels[zoom]), String.valueOf(column),
+				String.valueOf(row) });
+		try {
+			if (c.moveToFirst()) {
+				ret = c.getBlob(0);
+			}
+		} finally {
+			c.close();
+		}
+		return ret;
+	}
+
+	/**
+	 * Close the database connection until the next tile is read.
+	 */
+	public synchronized void close() {
+		if (db.isOpen()) {
+			db.close();
+		}
+	}
+}
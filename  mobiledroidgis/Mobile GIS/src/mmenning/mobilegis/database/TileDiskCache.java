@@ -0,0 +1,687 @@
+/*
+ * Copyright (C) 2010 by Mathias Menninghaus (mmenning (at) uos (dot) de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package mmenning.mobilegis.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Persistent Storage of encoded tiles on SDCard in the folder
+ * 'application-packagename'/tiles. Every tile is identified by a String key
+ * and stored as it was received from the server. The total size of all stored
+ * tiles is limited, if it exceeds the limit the least recently used tiles will
+ * be deleted.
+ *
+ * Along with every tile the HTTP validators (ETag, Last-Modified) and the
+ * time it expires are stored, so it can be revalidated with the server
+ * instead of being loaded again.
+ *
+ * Tiles may be pinned, e.g. the ones downloaded for offline use. Pinned
+ * tiles are only deleted if deleting all unpinned ones is not enough to keep
+ * the limit.
+ *
+ * The order of usage is kept in an index file, so it survives restarts of the
+ * application. The index will be written by {@link #flush()} and every
+ * FLUSH_INTERVAL insertions. Tile files which are not listed in the index
+ * (e.g. after a crash) will be deleted when the index is read.
+ *
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ */
+public class TileDiskCache {
+
+	private static final String DT = "TileDiskCache";
+
+	private static final String SDCARD = Environment
+			.getExternalStorageDirectory().getAbsolutePath();
+	private static final String TILES = File.separator + "tiles";
+
+	private static final String INDEX = "index";
+	private static final String INDEX_TMP = "index.tmp";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final char SEPARATOR = '\t';
+
+	/**
+	 * value of the pinned field in the index for pinned tiles
+	 */
+	private static final String PINNED = "p";
+
+	/**
+	 * count of fields of a line in the index
+	 */
+	private static final int INDEX_FIELDS = 7;
+
+	private static final int IO_BUFFER_SIZE = 1024;
+
+	/**
+	 * Count of insertions after which the index will be written
+	 */
+	private static final int FLUSH_INTERVAL = 32;
+
+	private final File dir;
+
+	private long maxSize;
+
+	private static TileDiskCache shared;
+
+	private long size;
+
+	private long nextFileID;
+
+	private int unflushedChanges;
+
+	private boolean loaded;
+
+	/**
+	 * Entries in order of usage, eldest first. The order is maintained by
+	 * {@link #touch(String)}, so lookups which must not count as usage can
+	 * use get().
+	 */
+	private final LinkedHashMap<String, StoredTile> entries;
+
+	/**
+	 * Instantiate a new TileDiskCache. If not done yet, it will create a new
+	 * folder named by the application package name referring to the given
+	 * Context and '/tiles'. The index is read lazily on first access, so the
+	 * constructor does not touch the file system besides creating the folder.
+	 *
+	 * @param context
+	 *            Context in which the TileDiskCache will work.
+	 * @param maxSize
+	 *            maximum size of all stored tiles in bytes
+	 */
+	public TileDiskCache(Context context, long maxSize) {
+		this.dir = new File(SDCARD + File.separator + context.getPackageName()
+				+ TILES);
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, StoredTile>(64, 0.75f);
+	}
+
+	/**
+	 * Get the TileDiskCache shared by all users of the tiles folder. Two
+	 * instances on the same folder would overwrite each others index.
+	 *
+	 * @param context
+	 *            Context in which the TileDiskCache will work.
+	 * @param maxSize
+	 *            maximum size of all stored tiles in bytes, only used if the
+	 *            shared instance does not exist yet
+	 * @return the shared TileDiskCache
+	 */
+	public static synchronized TileDiskCache getShared(Context context,
+			long maxSize) {
+		if (shared == null) {
+			shared = new TileDiskCache(context.getApplicationContext(),
+					maxSize);
+		}
+		return shared;
+	}
+
+	/**
+	 * Change the maximum size of all stored tiles. If it shrinks, the least
+	 * recently used tiles will be deleted.
+	 *
+	 * @param maxSize
+	 *            maximum size in bytes
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		if (loaded) {
+			trimToSize();
+		}
+	}
+
+	/**
+	 * @return maximum size of all stored tiles in bytes
+	 */
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Get the count of stored tiles.
+	 *
+	 * @return count of tiles
+	 */
+	public synchronized int count() {
+		ensureLoaded();
+		return entries.size();
+	}
+
+	/**
+	 * Get the stored data for a key and mark it as recently used.
+	 *
+	 * @param key
+	 *            identifier of the tile
+	 * @return the stored data or null if there is no such tile
+	 */
+	public byte[] get(String key) {
+		String fileName;
+		synchronized (this) {
+			ensureLoaded();
+			StoredTile e = touch(key);
+			if (e == null) {
+				return null;
+			}
+			fileName = e.fileName;
+		}
+		/*
+		 * read outside the lock, if the entry was evicted meanwhile reading
+		 * simply fails
+		 */
+		File file = new File(dir, fileName);
+		try {
+			return readFully(file);
+		} catch (IOException e) {
+			Log.w(DT, "could not read " + file + ": " + e.getMessage());
+			synchronized (this) {
+				/*
+				 * a new tile may have been stored for the key meanwhile,
+				 * every stored tile gets a new file
+				 */
+				StoredTile current = entries.get(key);
+				if (current != null && current.fileName.equals(fileName)) {
+					remove(key);
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Get the HTTP validators of a stored tile. Does not change the order of
+	 * usage.
+	 *
+	 * @param key
+	 *            identifier of the tile
+	 * @return the validators or null if there is no such tile
+	 */
+	public synchronized CacheHeaders getCacheHeaders(String key) {
+		ensureLoaded();
+		StoredTile e = entries.get(key);
+		return e == null ? null : e.headers;
+	}
+
+	/**
+	 * Replace the HTTP validators of a stored tile, e.g. after the server
+	 * confirmed that it has not been modified. Does not change the order of
+	 * usage.
+	 *
+	 * @param key
+	 *            identifier of the tile
+	 * @param headers
+	 *            new validators
+	 */
+	public synchronized void refresh(String key, CacheHeaders headers) {
+		ensureLoaded();
+		StoredTile e = entries.get(key);
+		if (e != null) {
+			e.headers = headers;
+			unflushedChanges++;
+		}
+	}
+
+	/**
+	 * Pin a stored tile, so it is deleted after all unpinned ones. A tile
+	 * stored for the same key later stays pinned. Does not change the order
+	 * of usage.
+	 *
+	 * @param key
+	 *            identifier of the tile
+	 */
+	public synchronized void pin(String key) {
+		ensureLoaded();
+		StoredTile e = entries.get(key);
+		if (e != null && !e.pinned) {
+			e.pinned = true;
+			unflushedChanges++;
+		}
+	}
+
+	/**
+	 * Query whether there is a tile stored for the key. Does not change the
+	 * order of usage.
+	 *
+	 * @param key
+	 *            identifier of the tile
+	 * @return true if a tile is stored, else false
+	 */
+	public synchronized boolean contains(String key) {
+		ensureLoaded();
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Store data for a key. An already stored tile with the same key will be
+	 * replaced. If the size limit is exceeded the least recently used tiles
+	 * will be deleted.
+	 *
+	 * @param key
+	 *            identifier of the tile
+	 * @param data
+	 *            encoded tile
+	 */
+	public void put(String key, byte[] data) {
+		put(key, data, CacheHeaders.NONE);
+	}
+
+	/**
+	 * Store data for a key together with its HTTP validators. An already
+	 * stored tile with the same key will be replaced. If the size limit is
+	 * exceeded the least recently used tiles will be deleted.
+	 *
+	 * @param key
+	 *            identifier of the tile
+	 * @param data
+	 *            encoded tile
+	 * @param headers
+	 *            validators received with the tile
+	 */
+	public void put(String key, byte[] data, CacheHeaders headers) {
+		if (data.length > maxSize) {
+			return;
+		}
+		String fileName;
+		synchronized (this) {
+			ensureLoaded();
+			fileName = Long.toString(nextFileID++, Character.MAX_RADIX);
+		}
+
+		/*
+		 * write to a temporary file first, so that no partial tile will ever
+		 * be listed in the index
+		 */
+		File tmp = new File(dir, fileName + TMP_SUFFIX);
+		File file = new File(dir, fileName);
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("could not rename " + tmp);
+			}
+		} catch (IOException e) {
+			Log.w(DT, e);
+			tmp.delete();
+			return;
+		}
+
+		synchronized (this) {
+			/*
+			 * removed first, a replaced key would keep its place in the order
+			 */
+			StoredTile old = entries.remove(key);
+			StoredTile e = new StoredTile(fileName, data.length, headers);
+			entries.put(key, e);
+			if (old != null) {
+				e.pinned = old.pinned;
+				size -= old.size;
+				new File(dir, old.fileName).delete();
+			}
+			size += data.length;
+			trimToSize();
+			if (++unflushedChanges >= FLUSH_INTERVAL) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Delete the tile stored for the key if there is one.
+	 *
+	 * @param key
+	 *            identifier of the tile
+	 */
+	public synchronized void remove(String key) {
+		ensureLoaded();
+		StoredTile e = entries.remove(key);
+		if (e != null) {
+			size -= e.size;
+			new File(dir, e.fileName).delete();
+			unflushedChanges++;
+		}
+	}
+
+	/**
+	 * Delete all stored tiles and the index.
+	 */
+	public synchronized void clear() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		entries.clear();
+		size = 0;
+		nextFileID = 0;
+		unflushedChanges = 0;
+		loaded = true;
+	}
+
+	/**
+	 * Get the size of all stored tiles.
+	 *
+	 * @return size in bytes
+	 */
+	public synchronized long size() {
+		ensureLoaded();
+		return size;
+	}
+
+	/**
+	 * Write the index to the file system if anything changed since the last
+	 * call.
+	 */
+	public synchronized void flush() {
+		if (!loaded || unflushedChanges == 0) {
+			return;
+		}
+		File tmp = new File(dir, INDEX_TMP);
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(tmp),
+					IO_BUFFER_SIZE * 8);
+			try {
+				out.write(Long.toString(nextFileID));
+				out.newLine();
+				for (Map.Entry<String, StoredTile> e : entries.entrySet()) {
+					StoredTile t = e.getValue();
+					out.write(t.fileName);
+					out.write(SEPARATOR);
+					out.write(Integer.toString(t.size));
+					out.write(SEPARATOR);
+					out.write(Long.toString(t.headers.expires));
+					out.write(SEPARATOR);
+					out.write(t.headers.etag == null ? "" : t.headers.etag);
+					out.write(SEPARATOR);
+					out.write(t.headers.lastModified == null ? ""
+							: t.headers.lastModified);
+					out.write(SEPARATOR);
+					out.write(t.pinned ? PINNED : "");
+					out.write(SEPARATOR);
+					out.write(e.getKey());
+					out.newLine();
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(new File(dir, INDEX))) {
+				throw new IOException("could not rename " + tmp);
+			}
+			unflushedChanges = 0;
+		} catch (IOException e) {
+			Log.w(DT, e);
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Move the entry of the key to the most recently used end.
+	 * 
+	 * @param key
+	 * @return the entry or null if there is none
+	 */
+	private StoredTile touch(String key) {
+		StoredTile e = entries.remove(key);
+		if (e != null) {
+			entries.put(key, e);
+		}
+		return e;
+	}
+
+	private void trimToSize() {
+		/*
+		 * the first pass skips pinned tiles
+		 */
+		for (int pass = 0; pass < 2 && size > maxSize; pass++) {
+			Iterator<StoredTile> it = entries.values().iterator();
+			while (size > maxSize && it.hasNext()) {
+				StoredTile e = it.next();
+				if (pass == 0 && e.pinned) {
+					continue;
+				}
+				it.remove();
+				size -= e.size;
+				new File(dir, e.fileName).delete();
+			}
+		}
+	}
+
+	/**
+	 * Read the index if not done yet and delete all files which are not
+	 * listed.
+	 */
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+
+		File index = new File(dir, INDEX);
+		if (index.exists()) {
+			try {
+				BufferedReader in = new BufferedReader(new FileReader(index),
+						IO_BUFFER_SIZE * 8);
+				try {
+					nextFileID = Long.parseLong(in.readLine());
+					String line;
+					while ((line = in.readLine()) != null) {
+						/*
+						 * file, size, expires, etag, lastModified, pinned, key.
+						 * Indices written before tiles could be pinned lack
+						 * pinned, the ones written before the validators were
+						 * stored only contain file, size and key.
+						 */
+						String[] fields = line.split(String.valueOf(SEPARATOR),
+								INDEX_FIELDS);
+						StoredTile e;
+						String key;
+						if (fields.length == INDEX_FIELDS) {
+							e = new StoredTile(fields[0], Integer
+									.parseInt(fields[1]), new CacheHeaders(
+									emptyToNull(fields[3]),
+									emptyToNull(fields[4]), Long
+											.parseLong(fields[2])));
+							e.pinned = fields[5].equals(PINNED);
+							key = fields[6];
+						} else if (fields.length == INDEX_FIELDS - 1) {
+							e = new StoredTile(fields[0], Integer
+									.parseInt(fields[1]), new CacheHeaders(
+									emptyToNull(fields[3]),
+									emptyToNull(fields[4]), Long
+											.parseLong(fields[2])));
+							key = fields[5];
+						} else if (fields.length == 3) {
+							e = new StoredTile(fields[0], Integer
+									.parseInt(fields[1]), CacheHeaders.NONE);
+							key = fields[2];
+						} else {
+							continue;
+						}
+						entries.put(key, e);
+						size += e.size;
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Log.w(DT, e);
+				entries.clear();
+				size = 0;
+			} catch (NumberFormatException e) {
+				Log.w(DT, "corrupt index, dropping all tiles");
+				entries.clear();
+				size = 0;
+			}
+		}
+
+		/*
+		 * delete orphaned files
+		 */
+		HashSet<String> known = new HashSet<String>(entries.size() * 2);
+		for (StoredTile e : entries.values()) {
+			known.add(e.fileName);
+		}
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String name = f.getName();
+				if (!name.equals(INDEX) && !known.contains(name)) {
+					f.delete();
+				}
+			}
+		}
+
+		trimToSize();
+	}
+
+	private static String emptyToNull(String s) {
+		return s.length() == 0 ? null : s;
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int off = 0;
+			int read;
+			while (off < data.length
+					&& (read = in.read(data, off, data.length - off)) != -1) {
+				off += read;
+			}
+			if (off != data.length) {
+				throw new IOException("unexpected end of " + file);
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Inner Class for a single stored tile.
+	 *
+	 * @author Mathias Menninghaus
+	 *
+	 */
+	private static class StoredTile {
+
+		private final String fileName;
+		private final int size;
+		private CacheHeaders headers;
+		private boolean pinned;
+
+		private StoredTile(String fileName, int size, CacheHeaders headers) {
+			this.fileName = fileName;
+			this.size = size;
+			this.headers = headers;
+		}
+	}
+
+	/**
+	 * HTTP validators of a stored tile.
+	 *
+	 * @author Mathias Menninghaus
+	 *
+	 */
+	public static class CacheHeaders {
+
+		/**
+		 * For tiles without any validators, they expire at once.
+		 */
+		public static final CacheHeaders NONE = new CacheHeaders(null, null,
+				0);
+
+		/**
+		 * value of the ETag header or null
+		 */
+		public final String etag;
+
+		/**
+		 * value of the Last-Modified header or null
+		 */
+		public final String lastModified;
+
+		/**
+		 * time in milliseconds after which the tile must be revalidated
+		 */
+		public final long expires;
+
+		/**
+		 * Instantiate new CacheHeaders. Tabs and line breaks of the values
+		 * are replaced, they would corrupt the index.
+		 *
+		 * @param etag
+		 *            value of the ETag header or null
+		 * @param lastModified
+		 *            value of the Last-Modified header or null
+		 * @param expires
+		 *            time in milliseconds after which the tile must be
+		 *            revalidated
+		 */
+		public CacheHeaders(String etag, String lastModified, long expires) {
+			this.etag = clean(etag);
+			this.lastModified = clean(lastModified);
+			this.expires = expires;
+		}
+
+		/**
+		 * @return true if the tile may be used without asking the server
+		 */
+		public boolean isFresh() {
+			return System.currentTimeMillis() < expires;
+		}
+
+		/**
+		 * @return true if the server can be asked whether the tile changed
+		 */
+		public boolean canRevalidate() {
+			return etag != null || lastModified != null;
+		}
+
+		private static String clean(String value) {
+			if (value == null || value.length() == 0) {
+				return null;
+			}
+			return value.replace(SEPARATOR, ' ').replace('\n', ' ').replace(
+					'\r', ' ');
+		}
+	}
+}
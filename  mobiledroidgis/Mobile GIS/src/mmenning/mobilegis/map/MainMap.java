@@ -15,6 +15,7 @@
  */
 package mmenning.mobilegis.map;
 
+import java.io.File;
 import java.util.Date;
 
 import mmenning.mobilegis.Preferences;
@@ -38,15 +39,20 @@ import mmenning.mobilegis.map.sos.SOSUtils;
 import mmenning.mobilegis.map.sos.SOSOverlay.SOSOverlayListener;
 import mmenning.mobilegis.map.wms.WMSActivity;
 import mmenning.mobilegis.map.wms.WMSDB;
+import mmenning.mobilegis.database.TileContainer;
+import mmenning.mobilegis.database.TileDiskCache;
 import mmenning.mobilegis.map.wms.WMSOverlay;
+import mmenning.mobilegis.map.wms.WMSSeeder;
 import mmenning.mobilegis.map.wms.WMSUtils;
 import mmenning.mobilegis.surface3d.SurfaceVisualizer;
 import mmenning.mobilegis.util.ProgressAnimationManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.SQLException;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -61,6 +67,7 @@ import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapActivity;
 import com.google.android.maps.MapController;
 import com.google.android.maps.MyLocationOverlay;
+import com.google.android.maps.Projection;
 
 /**
  * Main-Activity of this Application. A GoogleMaps view to display the users
@@ -83,6 +90,19 @@ public class MainMap extends MapActivity {
 	 * Dialog constants
 	 */
 	private static final int LAYERMENU_DIALOG = 0;
+	private static final int SEEDAREA_DIALOG = 1;
+	private static final int SEEDRESUME_DIALOG = 2;
+
+	/**
+	 * key of the saved state, true if the progress of the WMSSeeder was shown
+	 */
+	private static final String SEED_PROGRESS_SHOWN = "seedProgressShown";
+
+	/*
+	 * constants to choose the area to download
+	 */
+	private static final int VISIBLE_AREA = 0;
+	private static final int LAYER_BOUNDS = 1;
 
 	/*
 	 * constants to manage calling LayerMenus
@@ -103,6 +123,7 @@ public class MainMap extends MapActivity {
 	private static final int PREFERENCES = 1;
 	private static final int MYLOCATION = 2;
 	private static final int LAYERS = 3;
+	private static final int OFFLINE = 4;
 	/*
 	 * TODO only for testing
 	 */
@@ -128,6 +149,19 @@ public class MainMap extends MapActivity {
 
 	private SOSOverlay sosOverlay;
 
+	/**
+	 * running download of parts for offline use, or null. It outlives the
+	 * Activity, see {@link WMSSeeder#getRunning()}.
+	 */
+	private WMSSeeder seeder;
+
+	/**
+	 * interrupted download which may be continued, or null
+	 */
+	private WMSSeeder interruptedSeeder;
+
+	private ProgressDialog seedProgress;
+
 	/**
 	 * activate or deactivate the Loaction Update, so we dont need to
 	 * instanciate it every time;
@@ -263,6 +297,52 @@ public class MainMap extends MapActivity {
 		rebuildGeoRSS();
 		rebuildWMS();
 		rebuildSOS();
+
+		/*
+		 * a download started before the Activity was recreated, e.g. by a
+		 * rotation, is still running
+		 */
+		seeder = WMSSeeder.getRunning();
+		if (seeder != null) {
+			seeder.setHandler(seedHandler);
+			/*
+			 * it terminates after it is no longer running, so if it still is,
+			 * seedHandler will be notified
+			 */
+			if (WMSSeeder.getRunning() != seeder) {
+				seeder = null;
+			}
+		}
+		if (seeder != null) {
+			createSeedProgress(seeder);
+			if (savedInstanceState != null
+					&& savedInstanceState.getBoolean(SEED_PROGRESS_SHOWN)) {
+				seedProgress.show();
+			}
+		}
+	}
+
+	@Override
+	protected void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		outState.putBoolean(SEED_PROGRESS_SHOWN, seedProgress != null
+				&& seedProgress.isShowing());
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (seedProgress != null) {
+			seedProgress.dismiss();
+			seedProgress = null;
+		}
+		if (seeder != null) {
+			seeder.setHandler(null);
+			if (isFinishing()) {
+				seeder.cancel();
+			}
+			seeder = null;
+		}
+		super.onDestroy();
 	}
 
 	@Override
@@ -275,6 +355,8 @@ public class MainMap extends MapActivity {
 		menu.add(0, PREFERENCES, 0, R.string.preferences).setIcon(
 				R.drawable.menu_preferences);
 		menu.add(0, LAYERS, 0, R.string.layers).setIcon(R.drawable.menu_layers);
+		menu.add(0, OFFLINE, 0, R.string.offline_download).setIcon(
+				android.R.drawable.ic_menu_save);
 		/*
 		 * TODO just for testing
 		 */
@@ -318,6 +400,19 @@ public class MainMap extends MapActivity {
 		case LAYERS:
 			this.showDialog(LAYERMENU_DIALOG);
 			return true;
+		case OFFLINE:
+			if (seeder != null) {
+				seedProgress.show();
+				return true;
+			}
+			interruptedSeeder = WMSSeeder.restore(this, getTileDiskCache(),
+					seedHandler);
+			if (interruptedSeeder != null) {
+				this.showDialog(SEEDRESUME_DIALOG);
+			} else {
+				this.showDialog(SEEDAREA_DIALOG);
+			}
+			return true;
 		case TEST:
 			/*
 			 * TODO just for testing
@@ -455,10 +550,215 @@ public class MainMap extends MapActivity {
 				}
 			});
 			return b.create();
+
+		case SEEDAREA_DIALOG:
+			b = new AlertDialog.Builder(this);
+			b.setTitle(R.string.seed_area);
+			b.setItems(new CharSequence[] {
+					this.getString(R.string.seed_visible_area),
+					this.getString(R.string.seed_layer_bounds) },
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							dialog.dismiss();
+							WMSSeeder s = createSeeder(which == LAYER_BOUNDS);
+							if (s != null) {
+								confirmSeeding(s);
+							}
+						}
+					});
+			return b.create();
+
+		case SEEDRESUME_DIALOG:
+			b = new AlertDialog.Builder(this);
+			b.setTitle(R.string.offline_download);
+			b.setMessage(R.string.seed_resume);
+			b.setPositiveButton(R.string.resume,
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							confirmSeeding(interruptedSeeder);
+							interruptedSeeder = null;
+						}
+					});
+			b.setNegativeButton(R.string.delete,
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							WMSSeeder.discard(MainMap.this);
+							interruptedSeeder = null;
+							MainMap.this.showDialog(SEEDAREA_DIALOG);
+						}
+					});
+			return b.create();
 		}
 		return super.onCreateDialog(id);
 	}
 
+	private TileDiskCache getTileDiskCache() {
+		return TileDiskCache.getShared(this, WMSUtils.MAXDiskCacheSize);
+	}
+
+	/**
+	 * Create a WMSSeeder for all visible WMS, from the current zoom level to
+	 * {@link WMSUtils#SEEDZoomLevels} above.
+	 * 
+	 * @param layerBounds
+	 *            true to download the bounds of the visible layers instead of
+	 *            the visible area
+	 * @return the WMSSeeder or null if there is nothing to download
+	 */
+	private WMSSeeder createSeeder(boolean layerBounds) {
+		String[] urls = wmsOverlay.getMapBaseURLs();
+		if (urls.length == 0) {
+			Toast.makeText(this, R.string.seed_nothing, Toast.LENGTH_LONG)
+					.show();
+			return null;
+		}
+
+		GeoPoint lowerLeft;
+		GeoPoint upperRight;
+		if (layerBounds) {
+			float[] bounds = null;
+			WMSDB db = new WMSDB(this);
+			db.openReadOnly();
+			for (int wms : db.getVisibleWMS()) {
+				float[] b = db.getVisibleLayerBounds(wms);
+				if (b == null) {
+					continue;
+				}
+				if (bounds == null) {
+					bounds = b;
+				} else {
+					bounds[0] = Math.min(bounds[0], b[0]);
+					bounds[1] = Math.min(bounds[1], b[1]);
+					bounds[2] = Math.max(bounds[2], b[2]);
+					bounds[3] = Math.max(bounds[3], b[3]);
+				}
+			}
+			db.close();
+			if (bounds == null) {
+				Toast.makeText(this, R.string.seed_nothing, Toast.LENGTH_LONG)
+						.show();
+				return null;
+			}
+			/*
+			 * the poles can not be displayed in the Mercator projection
+			 */
+			lowerLeft = new GeoPoint((int) (Math.max(bounds[1],
+					-WMSUtils.MAXLatitude) * 1E6), (int) (Math.max(bounds[0],
+					-180) * 1E6));
+			upperRight = new GeoPoint((int) (Math.min(bounds[3],
+					WMSUtils.MAXLatitude) * 1E6), (int) (Math.min(bounds[2],
+					180) * 1E6));
+		} else {
+			Projection p = map.getProjection();
+			lowerLeft = p.fromPixels(0, map.getHeight());
+			upperRight = p.fromPixels(map.getWidth(), 0);
+		}
+
+		int zoom = map.getZoomLevel();
+		return new WMSSeeder(this, getTileDiskCache(), seedHandler, urls,
+				lowerLeft, upperRight, zoom, Math.min(zoom
+						+ WMSUtils.SEEDZoomLevels, map.getMaxZoomLevel()),
+				wmsOverlay.getMetaTileSize());
+	}
+
+	/**
+	 * Ask the user to start the WMSSeeder, showing the count of parts and the
+	 * estimated size. If they do not fit into the TileDiskCache, the download
+	 * is refused.
+	 * 
+	 * @param s
+	 */
+	private void confirmSeeding(final WMSSeeder s) {
+		final long mb = 1024 * 1024;
+		long size = (s.estimateSize() + mb - 1) / mb;
+		long maxSize = getTileDiskCache().getMaxSize() / mb;
+
+		AlertDialog.Builder b = new AlertDialog.Builder(this);
+		b.setTitle(R.string.offline_download);
+		if (size > maxSize) {
+			b.setMessage(this.getString(R.string.seed_too_large, size,
+					maxSize));
+			b.setPositiveButton(android.R.string.ok, null);
+		} else {
+			b.setMessage(this.getString(R.string.seed_confirm, s
+					.getTotalParts()
+					- s.getDoneParts(), size, s.getMinZoom(), s.getMaxZoom()));
+			b.setPositiveButton(R.string.load,
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							startSeeding(s);
+						}
+					});
+			b.setNegativeButton(R.string.cancel, null);
+		}
+		b.show();
+	}
+
+	private void startSeeding(final WMSSeeder s) {
+		seeder = s;
+		createSeedProgress(s);
+		seedProgress.show();
+		s.start(WMSUtils.SEEDThreads);
+	}
+
+	private void createSeedProgress(final WMSSeeder s) {
+		seedProgress = new ProgressDialog(this);
+		seedProgress.setTitle(R.string.offline_download);
+		seedProgress.setMessage(this.getString(R.string.seed_running));
+		seedProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		/*
+		 * the download goes on in the background if the dialog is left
+		 */
+		seedProgress.setCancelable(true);
+		seedProgress.setButton(this.getString(R.string.cancel),
+				new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						s.cancel();
+					}
+				});
+	}
+
+	final Handler seedHandler = new Handler() {
+
+		@Override
+		public void handleMessage(Message msg) {
+			switch (msg.what) {
+			case WMSSeeder.PROGRESS:
+				if (seedProgress != null) {
+					seedProgress.setMax(msg.arg2);
+					seedProgress.setProgress(msg.arg1);
+				}
+				break;
+			case WMSSeeder.FINISHED:
+			case WMSSeeder.CANCELLED:
+				if (seedProgress != null) {
+					seedProgress.dismiss();
+					seedProgress = null;
+				}
+				seeder = null;
+				if (msg.what == WMSSeeder.FINISHED && msg.arg1 > 0) {
+					/*
+					 * the job stays saved to load the failed parts again
+					 */
+					Toast.makeText(
+							MainMap.this,
+							MainMap.this.getString(R.string.seed_incomplete,
+									msg.arg1), Toast.LENGTH_LONG).show();
+				} else {
+					Toast.makeText(
+							MainMap.this,
+							msg.what == WMSSeeder.FINISHED ? R.string.seed_finished
+									: R.string.seed_cancelled,
+							Toast.LENGTH_SHORT).show();
+				}
+				map.invalidate();
+				break;
+			}
+			super.handleMessage(msg);
+		}
+
+	};
+
 	private void rebuildWMS() {
 		wmsOverlay.makeSleeping();
 
@@ -466,16 +766,40 @@ public class MainMap extends MapActivity {
 			public void run() {
 				layerBuildingHandler.sendEmptyMessage(STARTANIM);
 				wmsOverlay.clear();
+				/*
+				 * the lowest layer may be decoded without transparency
+				 */
+				boolean opaqueBase = PreferenceManager
+						.getDefaultSharedPreferences(MainMap.this).getBoolean(
+								MainMap.this.getString(R.string.opaquebase),
+								false);
+				/*
+				 * tile containers on the SDCard are the base maps below all
+				 * WMS
+				 */
+				File[] containers = TileContainer.list(MainMap.this);
+				for (int i = 0; i < containers.length; i++) {
+					try {
+						wmsOverlay.addContainer(containers[i]
+								.getAbsolutePath(), opaqueBase && i == 0);
+					} catch (SQLException e) {
+						Log.w(DT, "no tile container: " + containers[i]);
+					}
+				}
 				wmsdb.openReadOnly();
 				int[] wms = wmsdb.getVisibleWMS();
 
 				for (int i = wms.length - 1; i >= 0; i--) {
+					boolean opaque = opaqueBase && containers.length == 0
+							&& i == wms.length - 1;
 					String getMapBaseURL = WMSUtils.generateGetMapBaseURL(wmsdb
 							.getWMSData(wms[i], WMSDB.WMS_getMapURL), wmsdb
 							.getVisibleLayerNames(wms[i]), wmsdb
-							.getSRSforVisibleLayers(wms[i]));
+							.getSRSforVisibleLayers(wms[i]), WMSUtils
+							.chooseFormat(wmsdb.getFormats(wms[i]), opaque),
+							opaque);
 
-					wmsOverlay.addLoader(getMapBaseURL);
+					wmsOverlay.addLoader(getMapBaseURL, opaque);
 				}
 				wmsdb.close();
 				wmsOverlay.makeAwake();
@@ -569,6 +893,7 @@ public class MainMap extends MapActivity {
 		if (myLocationUpdate) {
 			myLocation.disableMyLocation();
 		}
+		wmsOverlay.onPause();
 		super.onPause();
 	}
 
@@ -595,6 +920,11 @@ public class MainMap extends MapActivity {
 		} else {
 			wmsOverlay.setTransparency(0xFF);
 		}
+		getTileDiskCache().setMaxSize(
+				Long.parseLong(prefs.getString(this
+						.getString(R.string.tilecachesize), String
+						.valueOf(WMSUtils.MAXDiskCacheSize / (1024 * 1024))))
+						* 1024 * 1024);
 
 		if (myLocationUpdate) {
 			myLocation.enableMyLocation();
@@ -17,7 +17,10 @@ package mmenning.mobilegis.map.georss;
 
 import java.text.ParseException;
 
+import java.util.Date;
+
 import mmenning.mobilegis.map.georss.ParsedGeoRSSFeed.ParsedGeoRSSEntry;
+import mmenning.mobilegis.util.ISO8601Parser;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -104,6 +107,8 @@ public class GeoRSSHandler extends DefaultHandler {
 	private ParsedGeoRSSEntry actEntry;
 
 	private StringBuffer charBuffer;
+
+	private final ISO8601Parser timeParser = new ISO8601Parser();
 	
 	public GeoRSSHandler(){
 		parsedFeed=new ParsedGeoRSSFeed();
@@ -229,6 +234,31 @@ public class GeoRSSHandler extends DefaultHandler {
 		}
 	}
 
+	/**
+	 * Parse the pubDate of the current item. RSS 2.0 requires RFC 822 dates,
+	 * but many feeds use ISO 8601 ones, which are parsed without
+	 * SimpleDateFormat.
+	 * 
+	 * @param text
+	 * @return the parsed Date, or the pubDate of the current item if the text
+	 *         is no date
+	 */
+	private Date parsePubDate(CharSequence text) {
+		try {
+			return new Date(timeParser.parse(text));
+		} catch (ParseException e) {
+			// no ISO 8601 date
+		}
+		try {
+			synchronized (GeoRSSUtils.rssTimeFormat) {
+				return GeoRSSUtils.rssTimeFormat.parse(text.toString().trim());
+			}
+		} catch (ParseException e) {
+			Log.w(DT, e);
+		}
+		return actEntry.pubDate;
+	}
+
 	@Override
 	public void endElement(String uri, String localName, String qName)
 			throws SAXException {
@@ -299,11 +329,7 @@ public class GeoRSSHandler extends DefaultHandler {
 				actEntry.link=charBuffer.toString();
 				in_link = false;
 			} else if (in_pubDate && localName.equals(pubDate)) {
-				try {
-					actEntry.pubDate=GeoRSSUtils.rssTimeFormat.parse(charBuffer.toString());
-				} catch (ParseException e) {
-					Log.w(DT, e);
-				}
+				actEntry.pubDate = parsePubDate(charBuffer);
 				in_pubDate = false;
 			} else if (localName.equals(item)) {
 				in_item = false;
@@ -17,6 +17,8 @@ package mmenning.mobilegis.map.sos;
 
 import java.text.ParseException;
 
+import mmenning.mobilegis.util.ISO8601Parser;
+
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -29,6 +31,13 @@ import android.util.Log;
  * 
  * based upon OGC 06-009r6 but not yet full!
  * 
+ * The values block is tokenized while it is read, so it is never held as a
+ * whole. Every parsed value is passed to an {@link ObservationSink}, by
+ * default the ObservationBuffer of the ParsedObservationData. A sink which
+ * writes the values to the SOSDB keeps the memory constant for any size of
+ * response. Times are parsed by an {@link ISO8601Parser}, so Z suffixes,
+ * fractional seconds and offsets with colon are accepted.
+ * 
  * @see SOSUtils for used Namespaces
  * 
  * @author Mathias Menninghaus
@@ -82,8 +91,51 @@ public class GetObservationHandler extends DefaultHandler {
 
 	private StringBuffer charBuffer;
 
+	/**
+	 * the current record of the values block
+	 */
+	private StringBuilder record;
+
+	private ObservationSink sink;
+
+	private final ISO8601Parser timeParser = new ISO8601Parser();
+
+	/**
+	 * Instantiate a GetObservationHandler which collects the values in the
+	 * ParsedObservationData.
+	 */
 	public GetObservationHandler() {
-		data = new ParsedObservationData();
+		this(new ObservationBuffer(SOSDB.INSERTChunk));
+	}
+
+	/**
+	 * Instantiate a GetObservationHandler which collects the values in the
+	 * given buffer, e.g. one reused from a previous request.
+	 * 
+	 * @param observations
+	 *            buffer of the ParsedObservationData, it is cleared first
+	 */
+	public GetObservationHandler(ObservationBuffer observations) {
+		data = new ParsedObservationData(observations);
+		sink = new ObservationSink() {
+			public void startValues(ParsedObservationData header) {
+			}
+
+			public void add(long time, float value) {
+				data.observations.add(time, value);
+			}
+		};
+	}
+
+	/**
+	 * Instantiate a GetObservationHandler which passes the values to the
+	 * given sink instead of collecting them.
+	 * 
+	 * @param sink
+	 */
+	public GetObservationHandler(ObservationSink sink) {
+		data = new ParsedObservationData(new ObservationBuffer(0));
+		this.sink = sink;
 	}
 
 	@Override
@@ -97,13 +149,72 @@ public class GetObservationHandler extends DefaultHandler {
 				}
 			} else if (in_result) {
 				if (in_values) {
-					charBuffer.append(ch, start, length);
+					tokenize(ch, start, length);
 				}
 			}
 		}
 
 	}
 
+	/**
+	 * Split the characters into records at the block separator. A record
+	 * may be split over several calls of characters().
+	 */
+	private void tokenize(char[] ch, int start, int length)
+			throws SAXException {
+		final int sepLength = bloSep.length();
+		final char sepLast = bloSep.charAt(sepLength - 1);
+		for (int i = start; i < start + length; i++) {
+			record.append(ch[i]);
+			final int recordLength = record.length();
+			if (ch[i] == sepLast && recordLength >= sepLength
+					&& endsWithSeparator(recordLength, sepLength)) {
+				parseRecord(recordLength - sepLength);
+				record.setLength(0);
+			}
+		}
+	}
+
+	private boolean endsWithSeparator(int recordLength, int sepLength) {
+		for (int i = 0; i < sepLength - 1; i++) {
+			if (record.charAt(recordLength - sepLength + i) != bloSep
+					.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a record of time, feature and value and pass it to the sink.
+	 * 
+	 * @param end
+	 *            length of the record without the block separator
+	 */
+	private void parseRecord(int end) throws SAXException {
+		String measure = record.substring(0, end).trim();
+		if (measure.length() == 0) {
+			return;
+		}
+		final int first = measure.indexOf(tokSep);
+		final int second = first < 0 ? -1 : measure.indexOf(tokSep, first
+				+ tokSep.length());
+		if (second < 0
+				|| measure.indexOf(tokSep, second + tokSep.length()) >= 0) {
+			return;
+		}
+		try {
+			long time = timeParser.parse(measure, 0, first);
+			float value = Float.parseFloat(measure.substring(second
+					+ tokSep.length()));
+			sink.add(time, value);
+		} catch (ParseException e) {
+			Log.w(DT, e);
+		} catch (NumberFormatException e) {
+			// Log.w(DT, measure);
+		}
+	}
+
 	@Override
 	public void endElement(String uri, String localName, String qName)
 			throws SAXException {
@@ -132,30 +243,10 @@ public class GetObservationHandler extends DefaultHandler {
 				} else if (in_values && localName.equals(values)) {
 					in_values = false;
 					/*
-					 * parse values
+					 * the last record may end without a block separator
 					 */
-					String[] measurements = charBuffer.toString().split(bloSep);
-
-					for (int i = 0; i < measurements.length; i++) {
-
-						String[] measure = measurements[i].split(tokSep);
-
-						if (measure.length == 3) {
-
-							try {
-								data.times.add(SOSUtils.sosDateFormat
-										.parse(measure[0]));
-								data.values.add(Float.valueOf(measure[2]));
-
-							} catch (ParseException e) {
-								Log.w(DT, e);
-							} catch (NumberFormatException e) {
-								// data.values.add(Float.NaN);
-								data.times.remove();
-								// Log.w(DT, measure[2]);
-							}
-						}
-					}
+					parseRecord(record.length());
+					record = null;
 				} else if (uri.equals(SOSUtils.omNamespace)) {
 					if (localName.equals(result)) {
 						in_result = false;
@@ -199,7 +290,8 @@ public class GetObservationHandler extends DefaultHandler {
 							in_encoding = true;
 						} else if (localName.equals(values)) {
 							in_values = true;
-							charBuffer = new StringBuffer();
+							record = new StringBuilder();
+							sink.startValues(data);
 						}
 					}
 				}
@@ -229,4 +321,34 @@ public class GetObservationHandler extends DefaultHandler {
 	public ParsedObservationData getParsedData() {
 		return data;
 	}
+
+	/**
+	 * Receives the values of a GetObservation response while it is parsed.
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	public interface ObservationSink {
+
+		/**
+		 * Called before the first value of a values block.
+		 * 
+		 * @param header
+		 *            unit and position of the observation, without values
+		 * @throws SAXException
+		 *             to abort parsing
+		 */
+		void startValues(ParsedObservationData header) throws SAXException;
+
+		/**
+		 * Called for every parsed value.
+		 * 
+		 * @param time
+		 *            milliseconds since 01.01.1970 00:00 GMT
+		 * @param value
+		 * @throws SAXException
+		 *             to abort parsing
+		 */
+		void add(long time, float value) throws SAXException;
+	}
 }
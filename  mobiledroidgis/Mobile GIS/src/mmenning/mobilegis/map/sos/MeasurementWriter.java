@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.sos;
+
+import mmenning.mobilegis.map.sos.GetObservationHandler.ObservationSink;
+
+/**
+ * {@link ObservationSink} which writes the values of a GetObservation
+ * response to the SOSDB while it is parsed. Values are collected in an
+ * {@link ObservationBuffer} and inserted in one transaction when
+ * {@link SOSDB#INSERTChunk} values are collected, so the memory used does
+ * not depend on the size of the response.
+ * 
+ * @author Mathias Menninghaus
+ * @version 15.11.2009
+ * 
+ */
+public class MeasurementWriter implements ObservationSink {
+
+	private static final String DT = "MeasurementWriter";
+
+	private final SOSDB db;
+	private final int featureID;
+	private final int propertyID;
+
+	/**
+	 * database id of the Measurement, -1 until the first values block starts
+	 */
+	private int measurementID = -1;
+
+	private final ObservationBuffer batch;
+
+	private int inserted;
+
+	/**
+	 * Instantiate a MeasurementWriter for one Feature and Property.
+	 * 
+	 * @param db
+	 *            opened SOSDB, only accessed by the parsing thread
+	 * @param featureID
+	 *            database id of the requested Feature
+	 * @param propertyID
+	 *            database id of the requested Property
+	 * @param batch
+	 *            buffer for the values, may be reused for the next
+	 *            MeasurementWriter after finish()
+	 */
+	public MeasurementWriter(SOSDB db, int featureID, int propertyID,
+			ObservationBuffer batch) {
+		this.db = db;
+		this.featureID = featureID;
+		this.propertyID = propertyID;
+		this.batch = batch;
+		batch.clear();
+	}
+
+	public void startValues(ParsedObservationData header) {
+		flush();
+		measurementID = db.addMeasurement(header, featureID, propertyID);
+	}
+
+	public void add(long time, float value) {
+		batch.add(time, value);
+		if (batch.size == SOSDB.INSERTChunk) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		if (batch.size > 0 && measurementID != -1) {
+			inserted += db.insertOrIgnoreMeasure(batch, measurementID);
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Insert the remaining values. If the response contained no values
+	 * block, at least the Measurement is stored.
+	 * 
+	 * @param header
+	 *            the parsed unit and position
+	 * @return count of inserted values, the others were already stored
+	 */
+	public int finish(ParsedObservationData header) {
+		if (measurementID == -1) {
+			measurementID = db.addMeasurement(header, featureID, propertyID);
+		}
+		flush();
+		return inserted;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.sos;
+
+/**
+ * Growable buffer of time value pairs in two primitive arrays, so a parsed
+ * value costs no objects. The arrays grow by doubling and keep their
+ * capacity when the buffer is cleared, so a buffer can be reused for many
+ * GetObservation requests.
+ * 
+ * @author Mathias Menninghaus
+ * @version 15.11.2009
+ * 
+ */
+public class ObservationBuffer {
+
+	private static final String DT = "ObservationBuffer";
+
+	/**
+	 * milliseconds since 01.01.1970 00:00 GMT, valid up to size
+	 */
+	public long[] times;
+	/**
+	 * values of the times, valid up to size
+	 */
+	public float[] values;
+	/**
+	 * count of buffered pairs
+	 */
+	public int size;
+
+	/**
+	 * Instantiate an empty ObservationBuffer
+	 * 
+	 * @param capacity
+	 *            count of pairs which fit without growing
+	 */
+	public ObservationBuffer(int capacity) {
+		times = new long[Math.max(1, capacity)];
+		values = new float[times.length];
+	}
+
+	/**
+	 * Append a pair.
+	 * 
+	 * @param time
+	 *            milliseconds since 01.01.1970 00:00 GMT
+	 * @param value
+	 */
+	public void add(long time, float value) {
+		if (size == times.length) {
+			long[] newTimes = new long[size * 2];
+			float[] newValues = new float[size * 2];
+			System.arraycopy(times, 0, newTimes, 0, size);
+			System.arraycopy(values, 0, newValues, 0, size);
+			times = newTimes;
+			values = newValues;
+		}
+		times[size] = time;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Remove all pairs but keep the capacity.
+	 */
+	public void clear() {
+		size = 0;
+	}
+}
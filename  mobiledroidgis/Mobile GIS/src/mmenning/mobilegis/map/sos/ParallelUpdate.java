@@ -0,0 +1,334 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.sos;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import mmenning.mobilegis.map.sos.GetObservationHandler.ObservationSink;
+
+import org.xml.sax.SAXException;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Updates the Measurements of several Features with concurrent
+ * GetObservation requests, so the round trips to the SOS overlap.
+ * 
+ * Only the Thread which calls {@link #run} accesses the SOSDB. The requesting
+ * Threads parse the responses into batches of {@link SOSDB#INSERTChunk} values
+ * and pass them through a bounded queue, so a slow database slows down the
+ * requests instead of filling the memory. The buffers of the batches are
+ * reused once they are inserted.
+ * 
+ * As in a sequential update, {@link SOSManager#NEXTELEMENT} is sent for every
+ * stored Feature and the first failed request aborts the update.
+ * 
+ * @author Mathias Menninghaus
+ * @version 15.11.2009
+ * 
+ */
+class ParallelUpdate {
+
+	private static final String DT = "ParallelUpdate";
+
+	/**
+	 * batches which may wait for the SOSDB per requesting Thread
+	 */
+	private static final int QUEUED_PER_THREAD = 4;
+
+	private final SOSDB db;
+	private final Handler handler;
+	private final int maxThreads;
+
+	private final BlockingQueue<Batch> queue;
+
+	/**
+	 * inserted buffers to be reused
+	 */
+	private final ConcurrentLinkedQueue<ObservationBuffer> free;
+
+	/**
+	 * true if a request failed, the other ones stop as soon as possible
+	 */
+	private volatile boolean aborted;
+
+	/**
+	 * Instantiate a new ParallelUpdate.
+	 * 
+	 * @param db
+	 *            opened SOSDB, only accessed by the Thread calling run()
+	 * @param handler
+	 *            receives a NEXTELEMENT for every stored Feature
+	 * @param maxThreads
+	 *            maximum count of requests at the same time
+	 */
+	ParallelUpdate(SOSDB db, Handler handler, int maxThreads) {
+		this.db = db;
+		this.handler = handler;
+		this.maxThreads = Math.max(1, maxThreads);
+		this.queue = new ArrayBlockingQueue<Batch>(this.maxThreads
+				* QUEUED_PER_THREAD);
+		this.free = new ConcurrentLinkedQueue<ObservationBuffer>();
+	}
+
+	/**
+	 * Post the GetObservation requests and store the responses. Returns when
+	 * all responses are stored or the first request failed.
+	 * 
+	 * @param getObservationPost
+	 *            url of the SOS
+	 * @param requests
+	 *            GetObservation request of every Feature
+	 * @param featureIDs
+	 *            database ids of the Features, in the order of the requests
+	 * @param propertyID
+	 *            database id of the requested Property
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	void run(String getObservationPost, String[] requests, int[] featureIDs,
+			int propertyID) throws IOException, ParserConfigurationException,
+			SAXException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				maxThreads, Math.max(1, requests.length)), new ThreadFactory() {
+			private int count;
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, DT + "-" + (++count));
+			}
+		});
+
+		int[] measurementIDs = new int[requests.length];
+		for (int i = 0; i < requests.length; i++) {
+			measurementIDs[i] = -1;
+			executor.execute(new Request(i, getObservationPost, requests[i]));
+		}
+
+		Throwable failure = null;
+		int inserted = 0;
+		try {
+			/*
+			 * every Request ends with a finishing batch, even if it failed
+			 */
+			int remaining = requests.length;
+			while (remaining > 0) {
+				Batch b = queue.take();
+				final int f = b.feature;
+				if (b.values != null) {
+					if (failure == null && measurementIDs[f] != -1) {
+						inserted += db.insertOrIgnoreMeasure(b.values,
+								measurementIDs[f]);
+					}
+					b.values.clear();
+					free.offer(b.values);
+				} else if (!b.finish) {
+					if (failure == null) {
+						measurementIDs[f] = db.addMeasurement(b.header,
+								featureIDs[f], propertyID);
+					}
+				} else {
+					remaining--;
+					if (failure != null) {
+						continue;
+					}
+					if (b.failure != null) {
+						failure = b.failure;
+						aborted = true;
+					} else {
+						if (measurementIDs[f] == -1) {
+							db.addMeasurement(b.header, featureIDs[f],
+									propertyID);
+						}
+						handler.sendEmptyMessage(SOSManager.NEXTELEMENT);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = new InterruptedIOException();
+		} finally {
+			/*
+			 * if the database failed, Requests may wait for the queue
+			 */
+			aborted = true;
+			executor.shutdownNow();
+			queue.clear();
+		}
+		Log.d(DT, requests.length + " Features with " + maxThreads
+				+ " Threads: " + inserted + " values inserted");
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof SAXException) {
+			throw (SAXException) failure;
+		} else if (failure instanceof ParserConfigurationException) {
+			throw (ParserConfigurationException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			IOException e = new IOException(failure.toString());
+			e.initCause(failure);
+			throw e;
+		}
+	}
+
+	private void checkAborted() throws SAXException {
+		if (aborted) {
+			throw new SAXException("update aborted");
+		}
+	}
+
+	private void put(Batch b) throws SAXException {
+		try {
+			queue.put(b);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SAXException("update aborted");
+		}
+	}
+
+	/**
+	 * Posts the request of one Feature and passes the parsed values to the
+	 * queue.
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	private class Request implements Runnable, ObservationSink {
+
+		private final int feature;
+		private final String getObservationPost;
+		private final String request;
+
+		private ObservationBuffer values;
+
+		private Request(int feature, String getObservationPost, String request) {
+			this.feature = feature;
+			this.getObservationPost = getObservationPost;
+			this.request = request;
+		}
+
+		public void run() {
+			Batch end = new Batch(feature);
+			end.finish = true;
+			try {
+				checkAborted();
+				end.header = SOSManager.makeGetObservationRequest(
+						getObservationPost, request, this);
+				flush();
+			} catch (Throwable t) {
+				end.failure = t;
+			} finally {
+				/*
+				 * run() waits for the end of every Request
+				 */
+				try {
+					put(end);
+				} catch (SAXException e) {
+					// aborted, nobody waits for the batch
+				}
+			}
+		}
+
+		public void startValues(ParsedObservationData header)
+				throws SAXException {
+			checkAborted();
+			flush();
+			/*
+			 * the header may be changed by the next member of the response
+			 * before the batch is stored
+			 */
+			Batch b = new Batch(feature);
+			b.header = new ParsedObservationData(new ObservationBuffer(0));
+			b.header.unit = header.unit;
+			b.header.LatE6 = header.LatE6;
+			b.header.LonE6 = header.LonE6;
+			put(b);
+		}
+
+		public void add(long time, float value) throws SAXException {
+			checkAborted();
+			if (values == null) {
+				values = free.poll();
+				if (values == null) {
+					values = new ObservationBuffer(SOSDB.INSERTChunk);
+				}
+			}
+			values.add(time, value);
+			if (values.size == SOSDB.INSERTChunk) {
+				flush();
+			}
+		}
+
+		private void flush() throws SAXException {
+			if (values != null) {
+				Batch b = new Batch(feature);
+				b.values = values;
+				values = null;
+				put(b);
+			}
+		}
+	}
+
+	/**
+	 * Values, header or end of a Request, in the order of the response
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	private static class Batch {
+
+		private final int feature;
+
+		/**
+		 * values to insert, null for a header or the end
+		 */
+		private ObservationBuffer values;
+
+		/**
+		 * unit and position for the following values or at the end
+		 */
+		private ParsedObservationData header;
+
+		/**
+		 * true for the last batch of a Request
+		 */
+		private boolean finish;
+
+		/**
+		 * reason if the Request failed
+		 */
+		private Throwable failure;
+
+		private Batch(int feature) {
+			this.feature = feature;
+		}
+	}
+}
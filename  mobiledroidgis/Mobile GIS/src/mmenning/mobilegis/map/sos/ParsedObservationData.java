@@ -15,9 +15,6 @@
  */
 package mmenning.mobilegis.map.sos;
 
-import java.util.Date;
-import java.util.LinkedList;
-
 /**
  * Model to hold data from a GetObservation Response.
  * 
@@ -42,17 +39,22 @@ public class ParsedObservationData {
 	public int LonE6;
 
 	/**
-	 * LinkedList of time (y-) values. Shall have the same length as values
+	 * time (y-) and (x-) values
 	 */
-	public LinkedList<Date> times;
+	public ObservationBuffer observations;
+
+	public ParsedObservationData() {
+		this(new ObservationBuffer(SOSDB.INSERTChunk));
+	}
+
 	/**
-	 * LinkedList of values (x). Shall have the same length as times.
+	 * @param observations
+	 *            buffer for the values, it is cleared first, so it may be
+	 *            reused from a previous request
 	 */
-	public LinkedList<Float> values;
-	
-	public ParsedObservationData(){
-		times = new LinkedList<Date>();
-		values = new LinkedList<Float>();
+	public ParsedObservationData(ObservationBuffer observations) {
+		observations.clear();
+		this.observations = observations;
 	}
 
 }
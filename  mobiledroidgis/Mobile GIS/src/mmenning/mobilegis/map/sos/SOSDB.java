@@ -26,6 +26,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -40,7 +41,10 @@ import android.util.Log;
  * Mesurements consist of Measurement (Meta-) Data and the values stored as
  * TimeValuePairs. A Measurement represents the result of a single
  * GetObservation Request. </br> To manage quick and cheap access all this Data
- * is identified by over the whole database definite ids.
+ * is identified by over the whole database definite ids. </br> Measurement
+ * values are inserted with a compiled statement in transactions of at most
+ * {@link #INSERTChunk} rows, so a large GetObservation response does not
+ * cost a journal commit per row.
  * 
  * @author Mathias Menninghaus
  * @version 11.11.2009
@@ -56,7 +60,15 @@ public class SOSDB {
 	private static final int TRUE = 1;
 	private static final int FALSE = 0;
 
-	private static final String NaN = "2143289344";
+	/**
+	 * stored instead of NaN values, the bits of Float.NaN (2143289344)
+	 */
+	private static final long NaN = Float.floatToIntBits(Float.NaN);
+
+	/**
+	 * Maximum count of measurement values inserted in one transaction
+	 */
+	public static final int INSERTChunk = 500;
 
 	/*
 	 * Tables
@@ -165,14 +177,26 @@ public class SOSDB {
 
 	private static final String SOS_Order = SOS_title + " ASC";
 
-	private static final String insertOrIgnoreMeasureBase = "INSERT OR IGNORE INTO "
+	private static final String insertOrIgnoreMeasureStatement = "INSERT OR IGNORE INTO "
 			+ Measure_TABLE
 			+ "("
 			+ Measure_time
 			+ ", "
 			+ Measure_value
 			+ ", "
-			+ Measure_measurement + ") VALUES";
+			+ Measure_measurement + ") VALUES (?, ?, ?)";
+
+	/**
+	 * compiled insertOrIgnoreMeasureStatement, or null if it is not compiled
+	 * for the current connection yet
+	 */
+	private SQLiteStatement insertMeasure;
+
+	/**
+	 * compiled query for the rows changed by the connection, to tell inserted
+	 * from ignored values
+	 */
+	private SQLiteStatement totalChanges;
 
 	private static final String countAllQuery = "SELECT count(" + ID
 			+ ") FROM " + Measures_TABLE + " WHERE " + Measures_property + "=?";
@@ -202,8 +226,27 @@ public class SOSDB {
 	/**
 	 * Add ParsedObservationData to the Database. Already contained measurement
 	 * Data will only be updated, if there is an empty entry.
+	 * 
+	 * @return count of inserted values, the others were already stored
+	 */
+	public int addMeasurementData(ParsedObservationData data, int featureID,
+			int propertyID) {
+		int measurementID = addMeasurement(data, featureID, propertyID);
+		return insertOrIgnoreMeasure(data.observations, measurementID);
+	}
+
+	/**
+	 * Add or update the (Meta-) Data of a Measurement without its values.
+	 * 
+	 * @param data
+	 *            unit and position of the Measurement
+	 * @param featureID
+	 *            database id of the related Feature
+	 * @param propertyID
+	 *            database id of the related Property
+	 * @return database id of the Measurement
 	 */
-	public void addMeasurementData(ParsedObservationData data, int featureID,
+	public int addMeasurement(ParsedObservationData data, int featureID,
 			int propertyID) {
 
 		ContentValues values = new ContentValues();
@@ -220,7 +263,7 @@ public class SOSDB {
 		} else {
 			db.update(Measures_TABLE, values, ID + "=" + measurementID, null);
 		}
-		insertOrIgnoreMeasure(data.times, data.values, measurementID);
+		return measurementID;
 	}
 
 	/**
@@ -298,10 +341,22 @@ public class SOSDB {
 	 * Close Database
 	 */
 	public void close() {
+		closeStatements();
 		db.close();
 		DBHelper.close();
 	}
 
+	private void closeStatements() {
+		if (insertMeasure != null) {
+			insertMeasure.close();
+			insertMeasure = null;
+		}
+		if (totalChanges != null) {
+			totalChanges.close();
+			totalChanges = null;
+		}
+	}
+
 	/**
 	 * Delete a SOS from the database
 	 * 
@@ -1124,6 +1179,7 @@ public class SOSDB {
 	 *             if something goes wrong
 	 */
 	public SOSDB open() throws SQLException {
+		closeStatements();
 		db = DBHelper.getWritableDatabase();
 		return this;
 	}
@@ -1135,6 +1191,7 @@ public class SOSDB {
 	 * @throws SQLExcpetion
 	 */
 	public SOSDB openReadOnly() throws SQLException {
+		closeStatements();
 		db = DBHelper.getReadableDatabase();
 		return this;
 	}
@@ -1337,44 +1394,63 @@ public class SOSDB {
 	}
 
 	/**
-	 * Inserts or replaces values of a measurement
+	 * Inserts values of a measurement which are not stored yet, in
+	 * transactions of at most {@link #INSERTChunk} values. Values with a time
+	 * which is already stored are ignored.
 	 * 
-	 * @param times
-	 *            time (y-) values should have the same length as values
-	 * @param values
-	 *            values (x) should have the same length as times
+	 * @param observations
+	 *            the values to insert
 	 * @param measurementID
 	 *            database id where the values should be inserted
-	 * @throws IllegalArgumentExcpetion
-	 *             if the lists dont have the same length
+	 * @return count of inserted values
 	 */
-	private void insertOrIgnoreMeasure(LinkedList<Date> times,
-			LinkedList<Float> values, int measurementID) {
-
-		if (times.size() != values.size()) {
-			Log.w(DT, "times size(" + times.size() + ") != values size ("
-					+ values.size() + ")");
-		} else {
-
-			if (!(times.isEmpty())) {
-
-				Iterator<Date> time = times.iterator();
-				Iterator<Float> value = values.iterator();
-
-				while (time.hasNext()) {
-					float val = value.next().floatValue();
+	public int insertOrIgnoreMeasure(ObservationBuffer observations,
+			int measurementID) {
+		int inserted = 0;
+		for (int from = 0; from < observations.size; from += INSERTChunk) {
+			inserted += insertOrIgnoreMeasure(observations.times,
+					observations.values, from, Math.min(observations.size,
+							from + INSERTChunk), measurementID);
+		}
+		Log.d(DT, "measurement " + measurementID + ": " + inserted
+				+ " values inserted, " + (observations.size - inserted)
+				+ " ignored");
+		return inserted;
+	}
 
-					db.execSQL(insertOrIgnoreMeasureBase + "("
-							+ time.next().getTime() + ", "
-							+ (Float.isNaN(val) ? NaN : val) + ", "
-							+ measurementID + ")");
+	/**
+	 * Inserts values of a measurement in one transaction.
+	 * 
+	 * @param from
+	 *            index of the first value to insert
+	 * @param to
+	 *            index after the last value to insert
+	 * @return count of inserted values
+	 */
+	private int insertOrIgnoreMeasure(long[] times, float[] values, int from,
+			int to, int measurementID) {
+		if (insertMeasure == null) {
+			insertMeasure = db.compileStatement(insertOrIgnoreMeasureStatement);
+			totalChanges = db.compileStatement("SELECT total_changes()");
+		}
+		final long before = totalChanges.simpleQueryForLong();
+		db.beginTransaction();
+		try {
+			for (int i = from; i < to; i++) {
+				insertMeasure.bindLong(1, times[i]);
+				if (Float.isNaN(values[i])) {
+					insertMeasure.bindLong(2, NaN);
+				} else {
+					insertMeasure.bindDouble(2, values[i]);
 				}
-
-			} else {
-				// Log.w(DT, "no data to insert");
+				insertMeasure.bindLong(3, measurementID);
+				insertMeasure.execute();
 			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
 		}
-
+		return (int) (totalChanges.simpleQueryForLong() - before);
 	}
 
 	private int[] insertOrIgnoreProperties(LinkedList<String> properties,
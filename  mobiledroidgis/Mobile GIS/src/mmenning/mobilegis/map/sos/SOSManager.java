@@ -24,6 +24,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -51,6 +52,10 @@ import android.util.Log;
  * storing it to the database. After every call of update and sync, the stored data over
  * capacity will be deleted.
  * 
+ * The values of a GetObservation response are written to the database while
+ * the response is parsed, see {@link MeasurementWriter}. Several Features
+ * are requested at the same time, see {@link ParallelUpdate}.
+ * 
  * @author Mathias Menninghaus
  * @version 15.11.2009
  * 
@@ -66,6 +71,19 @@ public class SOSManager {
 	private long requestRange;
 
 	private long storeRange;
+
+	/**
+	 * count of GetObservation requests at the same time when several Features
+	 * are updated, 1 to update them one after the other
+	 */
+	private int parallelRequests;
+
+	/**
+	 * buffers for the values of GetObservation responses, shared by all
+	 * SOSManagers and reused for all requests, every update at the same time
+	 * takes one of them
+	 */
+	private static final ConcurrentLinkedQueue<ObservationBuffer> batches = new ConcurrentLinkedQueue<ObservationBuffer>();
 	public static final int START = 10;
 
 	/*
@@ -100,12 +118,18 @@ public class SOSManager {
 		final String requestRangeString = context
 				.getString(R.string.requestperiod);
 		final String storeRangeString = context.getString(R.string.storeperiod);
+		final String parallelRequestsString = context
+				.getString(R.string.parallelrequests);
 
 		requestRange = Long.parseLong(sharedPreferences.getString(
 				requestRangeString, "" + SOSUtils.defaultDataRange));
 
 		storeRange = Long.parseLong(sharedPreferences.getString(
 				storeRangeString, "" + SOSUtils.defaultDataRange));
+
+		parallelRequests = Integer.parseInt(sharedPreferences.getString(
+				parallelRequestsString, ""
+						+ SOSUtils.defaultParallelRequests));
 		sharedPreferences
 				.registerOnSharedPreferenceChangeListener(new OnSharedPreferenceChangeListener() {
 
@@ -120,6 +144,11 @@ public class SOSManager {
 							storeRange = Long.parseLong(sharedPreferences
 									.getString(storeRangeString, ""
 											+ SOSUtils.defaultDataRange));
+						} else if (key.equals(parallelRequestsString)) {
+							parallelRequests = Integer
+									.parseInt(sharedPreferences.getString(
+											parallelRequestsString, ""
+													+ SOSUtils.defaultParallelRequests));
 						}
 
 					}
@@ -231,12 +260,18 @@ public class SOSManager {
 					.generateGetObservationRequest(offeringData.offering,
 							feature, property, startTime, endTime);
 
-			ParsedObservationData parsedObs = this.makeGetObservationRequest(db
-					.getSOS(offeringData.sosID).getObservationPost,
-					getObservationRequest);
-
 			clip();
-			db.addMeasurementData(parsedObs, featureID, propertyID);
+			ObservationBuffer batch = takeBatch();
+			try {
+				MeasurementWriter writer = new MeasurementWriter(db,
+						featureID, propertyID, batch);
+				ParsedObservationData parsedObs = makeGetObservationRequest(db
+						.getSOS(offeringData.sosID).getObservationPost,
+						getObservationRequest, writer);
+				writer.finish(parsedObs);
+			} finally {
+				batches.offer(batch);
+			}
 
 			db.close();
 			handler.sendEmptyMessage(SUCCESS);
@@ -294,13 +329,8 @@ public class SOSManager {
 			msg.arg1 = features.length;
 			handler.sendMessage(msg);
 
-			for (int i = 0; i < features.length; i++) {
-
-				this.update(offering, property, features[i], propertyID,
-						featureIDs[i], getObservationPost);
-
-				handler.sendEmptyMessage(NEXTELEMENT);
-			}
+			this.update(offering, property, features, propertyID, featureIDs,
+					getObservationPost);
 			clip();
 			db.close();
 
@@ -361,15 +391,14 @@ public class SOSManager {
 			msg.arg1 = measurementData.length;
 			handler.sendMessage(msg);
 
+			String[] features = new String[measurementData.length];
+			int[] featureIDs = new int[measurementData.length];
 			for (int i = 0; i < measurementData.length; i++) {
-
-				this.update(offering, property, db
-						.getFeature(measurementData[i].featureID), propertyID,
-						measurementData[i].featureID,
-						sosData.getObservationPost);
-
-				handler.sendEmptyMessage(NEXTELEMENT);
+				featureIDs[i] = measurementData[i].featureID;
+				features[i] = db.getFeature(featureIDs[i]);
 			}
+			this.update(offering, property, features, propertyID, featureIDs,
+					sosData.getObservationPost);
 			clip();
 			db.close();
 			handler.sendEmptyMessage(SUCCESS);
@@ -475,9 +504,17 @@ public class SOSManager {
 				clip[SOSUtils.ENDDATE]);
 	}
 
-	private ParsedObservationData makeGetObservationRequest(
-			String getObservationPost, String getObservationRequest)
-			throws IOException, ParserConfigurationException, SAXException {
+	/**
+	 * Post a GetObservation request and parse the response.
+	 * 
+	 * @param sink
+	 *            receives the values while they are parsed
+	 * @return unit and position of the observation
+	 */
+	static ParsedObservationData makeGetObservationRequest(
+			String getObservationPost, String getObservationRequest,
+			GetObservationHandler.ObservationSink sink) throws IOException,
+			ParserConfigurationException, SAXException {
 
 		// Log.d(DT, getObservationRequest);
 
@@ -498,7 +535,7 @@ public class SOSManager {
 		/* Get the XMLReader of the SAXParser we created. *///
 		XMLReader xr = sp.getXMLReader();
 		/* Create a new ContentHandler and apply it to the XML-Reader */
-		GetObservationHandler xmlhandler = new GetObservationHandler();
+		GetObservationHandler xmlhandler = new GetObservationHandler(sink);
 		xr.setContentHandler(xmlhandler);
 
 		/* Parse the xml-data from our URL. */
@@ -520,19 +557,69 @@ public class SOSManager {
 
 	}
 
-	private void update(String offering, String property, String feature,
-			int propertyID, int featureID, String getObservationPost)
+	/**
+	 * Update several Features and send a NEXTELEMENT for each of them. Up to
+	 * {@link #parallelRequests} Features are requested at the same time.
+	 */
+	private void update(String offering, String property, String[] features,
+			int propertyID, int[] featureIDs, String getObservationPost)
 			throws IOException, ParserConfigurationException, SAXException {
 
+		if (parallelRequests <= 1 || features.length <= 1) {
+			for (int i = 0; i < features.length; i++) {
+
+				this.update(offering, property, features[i], propertyID,
+						featureIDs[i], getObservationPost);
+
+				handler.sendEmptyMessage(NEXTELEMENT);
+			}
+			return;
+		}
+
+		clip();
+		String[] requests = new String[features.length];
+		for (int i = 0; i < features.length; i++) {
+			requests[i] = generateUpdateRequest(offering, property,
+					features[i], propertyID, featureIDs[i]);
+		}
+		new ParallelUpdate(db, handler, parallelRequests).run(
+				getObservationPost, requests, featureIDs, propertyID);
+	}
+
+	private String generateUpdateRequest(String offering, String property,
+			String feature, int propertyID, int featureID) {
 		Date[] request = requestUpdateRange(propertyID, featureID);
-		String getObservationRequest = SOSUtils.generateGetObservationRequest(
-				offering, feature, property, request[SOSUtils.STARTDATE],
+		return SOSUtils.generateGetObservationRequest(offering, feature,
+				property, request[SOSUtils.STARTDATE],
 				request[SOSUtils.ENDDATE]);
+	}
+
+	private void update(String offering, String property, String feature,
+			int propertyID, int featureID, String getObservationPost)
+			throws IOException, ParserConfigurationException, SAXException {
+
+		String getObservationRequest = generateUpdateRequest(offering,
+				property, feature, propertyID, featureID);
 
-		ParsedObservationData parsedObs = this.makeGetObservationRequest(
-				getObservationPost, getObservationRequest);
 		clip();
-		db.addMeasurementData(parsedObs, featureID, propertyID);
+		ObservationBuffer batch = takeBatch();
+		try {
+			MeasurementWriter writer = new MeasurementWriter(db, featureID,
+					propertyID, batch);
+			ParsedObservationData parsedObs = makeGetObservationRequest(
+					getObservationPost, getObservationRequest, writer);
+			writer.finish(parsedObs);
+		} finally {
+			batches.offer(batch);
+		}
+
+	}
 
+	/**
+	 * @return a buffer of the pool, or a new one if all are in use
+	 */
+	private static ObservationBuffer takeBatch() {
+		ObservationBuffer batch = batches.poll();
+		return batch != null ? batch : new ObservationBuffer(SOSDB.INSERTChunk);
 	}
 }
@@ -65,6 +65,12 @@ public class SOSUtils {
 	public static final String srsName = "EPSG:4326";
 
 	public static final long defaultDataRange = 60000;
+
+	/**
+	 * Default count of GetObservation requests at the same time when several
+	 * Features are updated
+	 */
+	public static final int defaultParallelRequests = 4;
 	/**
 	 * Encoding for a xml
 	 */
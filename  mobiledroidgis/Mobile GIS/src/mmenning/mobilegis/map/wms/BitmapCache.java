@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import mmenning.mobilegis.util.LongLruMap;
+import android.graphics.Bitmap;
+
+/**
+ * {@link LongLruMap} for Bitmaps which is limited by the memory used by the
+ * cached Bitmaps instead of their count. Meant to be shared by all WMSLoaders
+ * of a WMSOverlay, so the least recently drawn parts will be removed no
+ * matter to which WMS they belong. Removed Bitmaps are handed over to a
+ * {@link TileBitmapPool}.
+ * 
+ * Parts are looked up while drawing every frame, so the keys are primitive,
+ * see {@link WMSUtils#layerKey(int, long)}. Evictions are counted per layer
+ * for the {@link WMSMetrics}.
+ * 
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ */
+public class BitmapCache extends LongLruMap<Bitmap> {
+
+	private static final String DT = "BitmapCache";
+
+	private static final Weigher<Bitmap> BYTES = new Weigher<Bitmap>() {
+		public int sizeOf(Bitmap value) {
+			return value.getRowBytes() * value.getHeight();
+		}
+	};
+
+	private TileBitmapPool pool;
+
+	/**
+	 * count of evicted parts per layer
+	 */
+	private final int[] evictions;
+
+	/**
+	 * Instantiate a new BitmapCache which will use the given fraction of the
+	 * maximum heap of the application.
+	 * 
+	 * @param memoryFraction
+	 *            the cache will use at most 1/memoryFraction of the heap
+	 */
+	public BitmapCache(int memoryFraction) {
+		this(Runtime.getRuntime().maxMemory() / memoryFraction);
+	}
+
+	/**
+	 * Instantiate a new BitmapCache. If the Bitmaps exceed maxBytes, the
+	 * least recently used will be removed until three quarters of maxBytes
+	 * are left.
+	 * 
+	 * @param maxBytes
+	 *            maximum memory used by the cached Bitmaps
+	 */
+	public BitmapCache(long maxBytes) {
+		this(maxBytes, new TileBitmapPool(WMSUtils.MAXPooledBitmaps),
+				new int[WMSUtils.MAXLayers]);
+	}
+
+	private BitmapCache(long maxBytes, final TileBitmapPool pool,
+			final int[] evictions) {
+		super(maxBytes / 4 * 3, maxBytes, BYTES,
+				new EvictionListener<Bitmap>() {
+					public void onRemove(long key, Bitmap value,
+							boolean evicted) {
+						if (evicted) {
+							evictions[WMSUtils.keyLayer(key)]++;
+						}
+						pool.release(value);
+					}
+				});
+		this.pool = pool;
+		this.evictions = evictions;
+	}
+
+	/**
+	 * @param layerID
+	 *            see {@link WMSUtils#layerKey(int, long)}
+	 * @return count of parts of the layer removed by cleaning up
+	 */
+	public synchronized int getEvictionCount(int layerID) {
+		return evictions[layerID];
+	}
+
+	/**
+	 * @return the pool which receives all removed Bitmaps
+	 */
+	public TileBitmapPool getPool() {
+		return pool;
+	}
+}
@@ -189,9 +189,13 @@ public class GetCapabilitiesHandler extends DefaultHandler {
 				} else if (in_GetMap_Get && localName.equals(Get)) {
 					in_GetMap_Get = false;
 				} else if (in_GetMap_Format && localName.equals(Format)) {
-					if (charBuffer.toString().equals(PNGFORMAT)) {
+					String format = charBuffer.toString().trim();
+					if (format.equals(PNGFORMAT)) {
 						parsedData.supportsPNG = true;
 					}
+					if (format.length() > 0) {
+						parsedData.formats.add(format);
+					}
 					in_GetMap_Format = false;
 				} else if (localName.equals(Request)) {
 					in_Request = false;
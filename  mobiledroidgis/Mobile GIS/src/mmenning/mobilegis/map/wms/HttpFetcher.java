@@ -0,0 +1,302 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+
+import mmenning.mobilegis.database.TileDiskCache.CacheHeaders;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Executes GetMap requests and keeps track of their connections, so all
+ * running requests can be aborted at once. Every abort() starts a new
+ * generation, so results of aborted connections can be told apart from
+ * failures.
+ * 
+ * The time to the first byte and the size of every response are added to
+ * the {@link WMSMetrics}. Responses which are not declared as images, e.g.
+ * XML ServiceExceptions, or which exceed a maximum size are rejected before
+ * their body is read completely.
+ * 
+ * Once a Context is set, {@link #isConnected()} tells whether requests can
+ * reach the network at all, so stored parts can be used without waiting for
+ * a timeout.
+ * 
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ * 
+ */
+class HttpFetcher {
+
+	private static final String DT = "HttpFetcher";
+
+	private static final int IO_BUFFER_SIZE = 1024;
+
+	private static ConnectivityManager connectivity;
+
+	/**
+	 * Connections of all running requests
+	 */
+	private final HashSet<HttpURLConnection> connections;
+
+	/**
+	 * Incremented by abort()
+	 */
+	private int generation;
+
+	HttpFetcher() {
+		this.connections = new HashSet<HttpURLConnection>();
+	}
+
+	/**
+	 * Set the Context to query the connectivity with.
+	 * 
+	 * @param context
+	 */
+	static synchronized void setContext(Context context) {
+		if (connectivity == null) {
+			connectivity = (ConnectivityManager) context
+					.getApplicationContext().getSystemService(
+							Context.CONNECTIVITY_SERVICE);
+		}
+	}
+
+	/**
+	 * @return false if there is no network connection, true if there is one
+	 *         or it is unknown
+	 */
+	static boolean isConnected() {
+		ConnectivityManager cm;
+		synchronized (HttpFetcher.class) {
+			cm = connectivity;
+		}
+		if (cm == null) {
+			return true;
+		}
+		NetworkInfo info = cm.getActiveNetworkInfo();
+		return info != null && info.isConnected();
+	}
+
+	/**
+	 * @return the current generation, to be passed to download()
+	 */
+	int generation() {
+		synchronized (connections) {
+			return generation;
+		}
+	}
+
+	/**
+	 * @param startGeneration
+	 *            generation when the request started
+	 * @return true if abort() was called since the request started
+	 */
+	boolean isAborted(int startGeneration) {
+		synchronized (connections) {
+			return startGeneration != generation;
+		}
+	}
+
+	/**
+	 * Abort all running requests.
+	 */
+	void abort() {
+		synchronized (connections) {
+			generation++;
+			for (HttpURLConnection c : connections) {
+				c.disconnect();
+			}
+			connections.clear();
+		}
+	}
+
+	/**
+	 * Load the whole response of the url into memory. The connection can be
+	 * aborted by abort().
+	 * 
+	 * @param stored
+	 *            validators of the stored part to make a conditional request,
+	 *            or null
+	 * @param maxBytes
+	 *            maximum length of the body
+	 * @return the response, its data is null if the server answered that
+	 *         the stored part was not modified
+	 * @throws IOException
+	 *             if the request failed or was aborted, the response is not
+	 *             an image or longer than maxBytes
+	 */
+	Response download(URL url, int startGeneration,
+			CacheHeaders stored, int maxBytes) throws IOException {
+		HttpURLConnection c = (HttpURLConnection) url.openConnection();
+		c.setConnectTimeout(WMSUtils.TIMEOUT);
+		c.setReadTimeout(WMSUtils.TIMEOUT);
+		if (stored != null) {
+			if (stored.etag != null) {
+				c.setRequestProperty("If-None-Match", stored.etag);
+			}
+			if (stored.lastModified != null) {
+				c.setRequestProperty("If-Modified-Since", stored.lastModified);
+			}
+		}
+		synchronized (connections) {
+			if (startGeneration != generation) {
+				throw new IOException("aborted");
+			}
+			connections.add(c);
+		}
+		try {
+			final long start = SystemClock.uptimeMillis();
+			final int responseCode = c.getResponseCode();
+			WMSMetrics.TIME_TO_FIRST_BYTE.add(SystemClock.uptimeMillis()
+					- start);
+			if (stored != null
+					&& responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				WMSMetrics.addTransferred(0);
+				/*
+				 * a 304 may omit the validators, keep the stored ones then
+				 */
+				String etag = c.getHeaderField("ETag");
+				String lastModified = c.getHeaderField("Last-Modified");
+				if (etag == null) {
+					etag = stored.etag;
+				}
+				if (lastModified == null) {
+					lastModified = stored.lastModified;
+				}
+				return new Response(null, new CacheHeaders(etag, lastModified,
+						expires(c)));
+			}
+			if (!isImage(c.getContentType())) {
+				throw new IOException("no image but " + c.getContentType());
+			}
+			final int length = c.getContentLength();
+			if (length > maxBytes) {
+				throw new IOException("response of " + length + " bytes");
+			}
+			InputStream in = c.getInputStream();
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(
+						length > 0 ? length : IO_BUFFER_SIZE * 16);
+				byte[] b = new byte[IO_BUFFER_SIZE];
+				int read;
+				while ((read = in.read(b)) != -1) {
+					if (out.size() + read > maxBytes) {
+						throw new IOException("response exceeds " + maxBytes
+								+ " bytes");
+					}
+					out.write(b, 0, read);
+				}
+				WMSMetrics.addTransferred(out.size());
+				return new Response(out.toByteArray(), new CacheHeaders(c
+						.getHeaderField("ETag"), c
+						.getHeaderField("Last-Modified"), expires(c)));
+			} finally {
+				in.close();
+			}
+		} finally {
+			synchronized (connections) {
+				connections.remove(c);
+			}
+			c.disconnect();
+		}
+	}
+
+	/**
+	 * Some tile servers declare images as binary data, so only other types
+	 * are rejected.
+	 * 
+	 * @param contentType
+	 *            Content-Type of the response or null
+	 * @return false if the response is surely no image
+	 */
+	private static boolean isImage(String contentType) {
+		if (contentType == null) {
+			return true;
+		}
+		contentType = contentType.toLowerCase();
+		return contentType.startsWith("image/")
+				|| contentType.startsWith("application/octet-stream");
+	}
+
+	/**
+	 * Calculate when a response expires. Cache-Control takes precedence over
+	 * Expires. Without both, a tenth of the time since the last modification
+	 * is assumed, as proposed by RFC 2616, but at most
+	 * {@link WMSUtils#TILELifetime}.
+	 * 
+	 * @return time in milliseconds after which the part must be revalidated
+	 */
+	private static long expires(HttpURLConnection c) {
+		final long now = System.currentTimeMillis();
+		String cacheControl = c.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.equals("no-cache")
+						|| directive.equals("no-store")) {
+					return now;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						return now
+								+ Long.parseLong(directive.substring(8)) * 1000;
+					} catch (NumberFormatException e) {
+						Log.d(DT, "invalid Cache-Control: " + cacheControl);
+					}
+				}
+			}
+		}
+		long expiration = c.getExpiration();
+		if (expiration > 0) {
+			return expiration;
+		}
+		long lastModified = c.getLastModified();
+		if (lastModified > 0 && lastModified < now) {
+			return now + Math.min((now - lastModified) / 10,
+					WMSUtils.TILELifetime);
+		}
+		return now + WMSUtils.TILELifetime;
+	}
+
+	/**
+	 * Result of a GetMap request
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	static class Response {
+
+		/**
+		 * the encoded image or null if it was not modified
+		 */
+		final byte[] data;
+		final CacheHeaders headers;
+
+		private Response(byte[] data, CacheHeaders headers) {
+			this.data = data;
+			this.headers = headers;
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+
+import mmenning.mobilegis.database.TileDiskCache;
+import mmenning.mobilegis.database.TileDiskCache.CacheHeaders;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Process-wide table of the GetMap requests which are currently loaded. The
+ * WMSLoaders of all WMSOverlays and the {@link WMSSeeder} join the request
+ * for a URL before they load it, so concurrent requests for the same URL
+ * share one download and one decode. The first one to join becomes the
+ * leader and loads the URL, all others wait for its result.
+ * 
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ * 
+ */
+class InFlightRequests {
+
+	private static final String DT = "InFlightRequests";
+
+	/**
+	 * requests by their URL, as long as their leader loads them
+	 */
+	private static final HashMap<String, Request> requests = new HashMap<String, Request>();
+
+	private InFlightRequests() {
+	}
+
+	/**
+	 * Join the request for a URL. If it is not loaded yet, the calling thread
+	 * becomes the leader of a new request and must finish it with
+	 * {@link Request#complete(byte[], Bitmap, Bitmap.Config)} or
+	 * {@link Request#fail(boolean)}, else it must {@link Request#await()} the
+	 * result. Every caller must release the request after using the result.
+	 * 
+	 * @param url
+	 *            complete GetMap request
+	 * @return the request
+	 */
+	static Request join(String url) {
+		synchronized (requests) {
+			Request request = requests.get(url);
+			if (request == null) {
+				request = new Request(url);
+				requests.put(url, request);
+			} else {
+				request.addParticipant();
+			}
+			return request;
+		}
+	}
+
+	/**
+	 * Download the encoded image of a part or MetaTile as the leader of a
+	 * request and store it in the TileDiskCache. A stored image is
+	 * revalidated and read from the TileDiskCache if it is still valid.
+	 * 
+	 * @param fetcher
+	 *            to download with
+	 * @param startGeneration
+	 *            generation of the fetcher when loading started
+	 * @param url
+	 *            GetMap request
+	 * @param diskCache
+	 *            to store the image in
+	 * @param cacheKey
+	 *            key of the image in the diskCache
+	 * @param stored
+	 *            CacheHeaders of the stored image or null
+	 * @param parts
+	 *            count of parts of the image, limits the length of the
+	 *            response, see {@link WMSUtils#MAXPartBytes}
+	 * @return the encoded image or null if the WMS did not return one
+	 * @throws IOException
+	 *             if the download failed or was aborted
+	 */
+	static byte[] download(HttpFetcher fetcher, int startGeneration, URL url,
+			TileDiskCache diskCache, String cacheKey, CacheHeaders stored,
+			int parts) throws IOException {
+		HttpFetcher.Response response = fetcher.download(url,
+				startGeneration, stored, WMSUtils.MAXPartBytes * parts);
+		if (response.data == null) {
+			diskCache.refresh(cacheKey, response.headers);
+			return diskCache.get(cacheKey);
+		}
+		if (!WMSUtils.isImage(response.data)) {
+			Log.w(DT, "no image: " + url);
+			return null;
+		}
+		diskCache.put(cacheKey, response.data, response.headers);
+		return response.data;
+	}
+
+	/**
+	 * A GetMap request loaded by its leader for all participants.
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	static class Request {
+
+		private final String url;
+
+		private final Thread leader;
+
+		/**
+		 * count of callers of join(), fixed once the request is finished
+		 */
+		private int participants = 1;
+
+		private int released;
+
+		/**
+		 * count of participants which received the decoded image
+		 */
+		private int receivers;
+
+		/**
+		 * true if a participant cached the decoded image itself
+		 */
+		private boolean cached;
+
+		private boolean done;
+
+		private boolean aborted;
+
+		private byte[] data;
+
+		private Bitmap image;
+
+		private Bitmap.Config config;
+
+		private Request(String url) {
+			this.url = url;
+			this.leader = Thread.currentThread();
+		}
+
+		private synchronized void addParticipant() {
+			participants++;
+		}
+
+		/**
+		 * @return true if the calling thread has to load the request
+		 */
+		boolean isLeader() {
+			return leader == Thread.currentThread();
+		}
+
+		/**
+		 * Hand the result over to all participants. Only called by the
+		 * leader.
+		 * 
+		 * @param data
+		 *            the encoded image or null if there is none
+		 * @param image
+		 *            the decoded image or null if the leader did not decode
+		 *            it
+		 * @param config
+		 *            Bitmap.Config the image was decoded with
+		 */
+		void complete(byte[] data, Bitmap image, Bitmap.Config config) {
+			finish(data, image, config, false);
+		}
+
+		/**
+		 * Finish the request without a result if it is not complete yet.
+		 * Only called by the leader.
+		 * 
+		 * @param aborted
+		 *            true if the leader was aborted, the other participants
+		 *            will join a new request then
+		 */
+		void fail(boolean aborted) {
+			finish(null, null, null, aborted);
+		}
+
+		private void finish(byte[] data, Bitmap image, Bitmap.Config config,
+				boolean aborted) {
+			/*
+			 * nobody joins after the request left the table, so the count of
+			 * participants is final
+			 */
+			synchronized (requests) {
+				if (requests.get(url) == this) {
+					requests.remove(url);
+				}
+			}
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				this.data = data;
+				this.image = image;
+				this.config = config;
+				this.aborted = aborted;
+				this.done = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Wait until the leader finished the request.
+		 * 
+		 * @return false if the leader was aborted, the request must be joined
+		 *         again then
+		 */
+		synchronized boolean await() {
+			boolean interrupted = false;
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return !aborted;
+		}
+
+		/**
+		 * @return the encoded image or null if the request failed
+		 */
+		synchronized byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * Receive the decoded image. Once a second participant receives it,
+		 * it is marked with {@link TileBitmapPool#markShared(Bitmap)}, the
+		 * first one may have cached it already.
+		 * 
+		 * @param config
+		 *            Bitmap.Config the participant needs
+		 * @return the image decoded by the leader or null if it was not
+		 *         decoded with the config
+		 */
+		synchronized Bitmap getImage(Bitmap.Config config) {
+			if (image == null || config != this.config) {
+				return null;
+			}
+			if (++receivers == 2) {
+				TileBitmapPool.markShared(image);
+			}
+			return image;
+		}
+
+		/**
+		 * @return true if more than one participant received the decoded
+		 *         image until now, it is cached several times then
+		 */
+		synchronized boolean isShared() {
+			return receivers > 1;
+		}
+
+		/**
+		 * Called by every participant after using the result. If none of
+		 * them cached the decoded image, e.g. because it was cut into the
+		 * parts of a MetaTile, it is recycled by the last one.
+		 * 
+		 * @param imageCached
+		 *            true if the participant cached the decoded image
+		 */
+		synchronized void release(boolean imageCached) {
+			cached |= imageCached;
+			if (++released == participants && !cached && image != null) {
+				image.recycle();
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+/**
+ * Block of columns x rows parts which are requested from the WMS with a
+ * single GetMap request and sliced afterwards. Servers render labels and
+ * symbols across the whole block, and the count of requests is divided by
+ * the count of parts.
+ * 
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ */
+public class MetaTile {
+
+	/**
+	 * definite identifier of the whole block
+	 */
+	public final long key;
+
+	/**
+	 * zoom level of the map
+	 */
+	public final int zoom;
+
+	/**
+	 * column of the top-left part in the global tile matrix
+	 */
+	public final int column;
+
+	/**
+	 * row of the top-left part in the global tile matrix
+	 */
+	public final int row;
+
+	public final int columns;
+
+	public final int rows;
+
+	/**
+	 * keys of the parts row by row from top-left to bottom-right
+	 */
+	public final long[] parts;
+
+	/**
+	 * Instantiate a new MetaTile.
+	 * 
+	 * @param key
+	 *            definite identifier of the whole block, see
+	 *            {@link WMSUtils#metaTileKey(int, int, int, int)}
+	 * @param zoom
+	 *            zoom level of the map
+	 * @param column
+	 *            column of the top-left part, see
+	 *            {@link WMSUtils#partKey(int, int, int)}
+	 * @param row
+	 *            row of the top-left part
+	 * @param columns
+	 * @param rows
+	 */
+	public MetaTile(long key, int zoom, int column, int row, int columns,
+			int rows) {
+		this.key = key;
+		this.zoom = zoom;
+		this.column = column;
+		this.row = row;
+		this.columns = columns;
+		this.rows = rows;
+		this.parts = new long[columns * rows];
+		for (int r = 0, i = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++, i++) {
+				parts[i] = WMSUtils.partKey(zoom, column + c, row + r);
+			}
+		}
+	}
+}
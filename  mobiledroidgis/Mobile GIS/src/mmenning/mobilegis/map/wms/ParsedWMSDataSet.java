@@ -41,6 +41,11 @@ public class ParsedWMSDataSet {
         
 	public boolean supportsPNG;
 
+	/**
+	 * MIME types of the images the GetMap request supports
+	 */
+	public List<String> formats = new LinkedList<String>();
+
 	/**
 	 * Represents a WMS - Layer 
 	 * 
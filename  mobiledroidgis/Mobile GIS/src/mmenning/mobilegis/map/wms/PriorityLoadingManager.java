@@ -15,15 +15,28 @@
  */
 package mmenning.mobilegis.map.wms;
 
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.TreeSet;
+
+import android.os.SystemClock;
 
 /**
  * Provides data storage of Values in two Queues. One for Data Storage that
  * should be requested by Threads to do something with it. The other one to
  * estimate whether a Thread already does something with data.
  * 
+ * The Data Queue is divided into the foreground and the prefetch Queue.
+ * Values of the prefetch Queue will only be returned if the foreground Queue
+ * is empty. Within each Queue the Value with the lowest priority number is
+ * returned first, e.g. the part nearest to the predicted center of the
+ * viewport. Values with equal priority are returned newest first from the
+ * foreground and oldest first from the prefetch Queue.
+ * 
+ * Every Entry carries the time it was first queued, so the time spent
+ * waiting can be measured.
+ * 
  * @author Mathias Menninghaus
  * 
  * @param <K>
@@ -33,18 +46,39 @@ import java.util.LinkedList;
  */
 public class PriorityLoadingManager<K, V> {
 
-	private HashMap<K, V> parts;
-	private LinkedList<K> partPriority;
+	/**
+	 * Priority of Values inserted without a priority, they will be returned
+	 * before all others
+	 */
+	public static final float HEAD = Float.NEGATIVE_INFINITY;
+
+	private HashMap<K, Slot<K, V>> parts;
+	private TreeSet<Slot<K, V>> partPriority;
+	private TreeSet<Slot<K, V>> prefetchPriority;
 	private HashSet<K> currentlyLoading;
 
+	/**
+	 * source of the insertion order of the Slots
+	 */
+	private long insertions;
+
 	private static final String DT = "PriorityLoadingManager";
 
 	/**
 	 * Instantiate a PriorityLoadingManager
 	 */
 	public PriorityLoadingManager() {
-		this.parts = new HashMap<K, V>();
-		this.partPriority = new LinkedList<K>();
+		Comparator<Slot<K, V>> byPriority = new Comparator<Slot<K, V>>() {
+			public int compare(Slot<K, V> a, Slot<K, V> b) {
+				if (a.priority != b.priority) {
+					return a.priority < b.priority ? -1 : 1;
+				}
+				return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+			}
+		};
+		this.parts = new HashMap<K, Slot<K, V>>();
+		this.partPriority = new TreeSet<Slot<K, V>>(byPriority);
+		this.prefetchPriority = new TreeSet<Slot<K, V>>(byPriority);
 		this.currentlyLoading = new HashSet<K>();
 	}
 
@@ -54,6 +88,17 @@ public class PriorityLoadingManager<K, V> {
 	public synchronized void clearLoadingQueue() {
 		parts.clear();
 		partPriority.clear();
+		prefetchPriority.clear();
+	}
+
+	/**
+	 * Wipes out all data of the prefetch Queue
+	 */
+	public synchronized void clearPrefetchQueue() {
+		for (Slot<K, V> slot : prefetchPriority) {
+			parts.remove(slot.key);
+		}
+		prefetchPriority.clear();
 	}
 
 	/**
@@ -63,11 +108,14 @@ public class PriorityLoadingManager<K, V> {
 	 */
 	public synchronized Entry<K, V> removeFirstAndStartLoading() {
 		if (!isEmpty()) {
-			K key = partPriority.getFirst();
-			Entry<K, V> ret = new Entry<K, V>(key, parts.get(key));
-			this.startLoading(key);
-			parts.remove(key);
-			partPriority.remove(key);
+			boolean prefetch = partPriority.isEmpty();
+			Slot<K, V> slot = prefetch ? prefetchPriority.first()
+					: partPriority.first();
+			(prefetch ? prefetchPriority : partPriority).remove(slot);
+			parts.remove(slot.key);
+			Entry<K, V> ret = new Entry<K, V>(slot.key, slot.value, prefetch,
+					slot.queued);
+			this.startLoading(slot.key);
 			return ret;
 		}
 		return null;
@@ -81,27 +129,127 @@ public class PriorityLoadingManager<K, V> {
 	 * @param value
 	 */
 	public synchronized void insertIntoLoadingQueue(K key, V value) {
+		insertIntoLoadingQueue(key, value, HEAD);
+	}
+
+	/**
+	 * Inserts Key-Value Pair to the foreground Queue. If the Queue already
+	 * contains this data it will only be moved to the given priority.
+	 * 
+	 * @param key
+	 * @param value
+	 * @param priority
+	 *            lower priorities are returned first
+	 */
+	public synchronized void insertIntoLoadingQueue(K key, V value,
+			float priority) {
 		if (!parts.containsKey(key)) {
-			parts.put(key, value);
-			partPriority.addFirst(key);
+			Slot<K, V> slot = new Slot<K, V>(key, value);
+			parts.put(key, slot);
+			enqueue(slot, priority, false);
 		} else {
-			partPriority.remove(key);
-			partPriority.addFirst(key);
+			reprioritize(key, priority);
 		}
 	}
 
 	/**
-	 * Estimate whether the key is in the Thread or the Data Queue
+	 * Inserts Key-Value Pair to the tail of the prefetch Queue. If the key is
+	 * already in one of the Queues or currently loaded nothing will happen.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public synchronized void insertIntoPrefetchQueue(K key, V value) {
+		insertIntoPrefetchQueue(key, value, Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Inserts Key-Value Pair to the prefetch Queue. If the key is currently
+	 * loaded or in the foreground Queue nothing will happen. If it is already
+	 * in the prefetch Queue it will get the lower of both priorities.
+	 * 
+	 * @param key
+	 * @param value
+	 * @param priority
+	 *            lower priorities are returned first
+	 */
+	public synchronized void insertIntoPrefetchQueue(K key, V value,
+			float priority) {
+		if (currentlyLoading.contains(key)) {
+			return;
+		}
+		Slot<K, V> slot = parts.get(key);
+		if (slot == null) {
+			slot = new Slot<K, V>(key, value);
+			parts.put(key, slot);
+			enqueue(slot, priority, true);
+		} else if (slot.prefetch && priority < slot.priority) {
+			prefetchPriority.remove(slot);
+			enqueue(slot, priority, true);
+		}
+	}
+
+	/**
+	 * Estimate whether the key is in the Thread or the Data Queue without
+	 * changing its position.
+	 * 
 	 * @param key
 	 * @return true if it does, else false
 	 */
-	public synchronized boolean threadRunsOrIsInQueue(K key) {
-		if (parts.containsKey(key)) {
-			partPriority.remove(key);
-			partPriority.addFirst(key);
-			return true;
+	public synchronized boolean contains(K key) {
+		return parts.containsKey(key) || currentlyLoading.contains(key);
+	}
+
+	/**
+	 * Move a key of the Data Queue to the foreground Queue with the given
+	 * priority.
+	 * 
+	 * @param key
+	 * @param priority
+	 * @return true if the key was in the Data Queue, else false
+	 */
+	public synchronized boolean reprioritize(K key, float priority) {
+		Slot<K, V> slot = parts.get(key);
+		if (slot == null) {
+			return false;
 		}
-		return currentlyLoading.contains(key);
+		(slot.prefetch ? prefetchPriority : partPriority).remove(slot);
+		enqueue(slot, priority, false);
+		return true;
+	}
+
+	private void enqueue(Slot<K, V> slot, float priority, boolean prefetch) {
+		slot.priority = priority;
+		slot.prefetch = prefetch;
+		/*
+		 * newest first in the foreground, oldest first in the prefetch Queue
+		 */
+		slot.order = prefetch ? ++insertions : -(++insertions);
+		(prefetch ? prefetchPriority : partPriority).add(slot);
+	}
+
+	/**
+	 * Estimate whether the key is in the Thread or the Data Queue. A key of
+	 * the Data Queue will be moved to the head of the foreground Queue.
+	 * 
+	 * @param key
+	 * @return true if it does, else false
+	 */
+	public synchronized boolean threadRunsOrIsInQueue(K key) {
+		return threadRunsOrIsInQueue(key, HEAD);
+	}
+
+	/**
+	 * Estimate whether the key is in the Thread or the Data Queue. A key of
+	 * the Data Queue will be moved to the foreground Queue with the given
+	 * priority.
+	 * 
+	 * @param key
+	 * @param priority
+	 * @return true if it does, else false
+	 */
+	public synchronized boolean threadRunsOrIsInQueue(K key, float priority) {
+		return reprioritize(key, priority) || currentlyLoading.contains(key);
 	}
 
 	/**
@@ -112,6 +260,22 @@ public class PriorityLoadingManager<K, V> {
 		return parts.isEmpty();
 	}
 
+	/**
+	 * Count of Values in the Data Queue
+	 * @return
+	 */
+	public synchronized int size() {
+		return parts.size();
+	}
+
+	/**
+	 * Count of Values in the foreground Queue
+	 * @return
+	 */
+	public synchronized int foregroundSize() {
+		return partPriority.size();
+	}
+
 	/**
 	 * Estimate whether the Thread Queue is empty or not
 	 * @param key
@@ -137,6 +301,31 @@ public class PriorityLoadingManager<K, V> {
 		currentlyLoading.add(key);
 	}
 
+	/**
+	 * Inner Class for a queued Key-Value Pair
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	private static class Slot<K, V> {
+
+		private final K key;
+		private final V value;
+		private float priority;
+		private long order;
+		private boolean prefetch;
+		/**
+		 * uptime in milliseconds of the first insertion
+		 */
+		private final long queued;
+
+		private Slot(K key, V value) {
+			this.key = key;
+			this.value = value;
+			this.queued = SystemClock.uptimeMillis();
+		}
+	}
+
 	/**
 	 * Inner Class for Entry Output
 	 * @author Mathias Menninghaus
@@ -148,10 +337,20 @@ public class PriorityLoadingManager<K, V> {
 
 		public K key;
 		public V value;
+		/**
+		 * true if the Entry was taken from the prefetch Queue
+		 */
+		public boolean prefetch;
+		/**
+		 * uptime in milliseconds when the Entry was queued
+		 */
+		public long queued;
 
-		private Entry(K key, V value) {
+		private Entry(K key, V value, boolean prefetch, long queued) {
 			this.key = key;
 			this.value = value;
+			this.prefetch = prefetch;
+			this.queued = queued;
 		}
 	}
 }
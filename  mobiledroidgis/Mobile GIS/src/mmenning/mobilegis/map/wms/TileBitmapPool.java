@@ -0,0 +1,345 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Pool for the Bitmaps of WMS parts. Bitmaps removed from the
+ * {@link BitmapCache} are handed over to the pool instead of being left to
+ * the garbage collector, and new parts are decoded into them.
+ *
+ * A removed Bitmap may still be drawn in the current frame, so it only
+ * becomes available with the next call of {@link #onFrame()}, which must be
+ * called by the drawing thread before it queries the BitmapCache.
+ *
+ * Decoding into an existing Bitmap (BitmapFactory.Options.inBitmap) is only
+ * supported since Honeycomb and is accessed by reflection. On older platforms
+ * removed Bitmaps are recycled in onFrame(), which at least frees their pixel
+ * memory without waiting for the garbage collector.
+ *
+ * The bounds of an image are decoded first. Images larger than requested
+ * are subsampled while decoding and scaled to the requested size, so a
+ * server which ignores the requested size cannot exhaust the heap.
+ *
+ * Parts loaded by a request shared with other WMSLoaders may be cached by
+ * several BitmapCaches at once, they are marked with {@link
+ * #markShared(Bitmap)} and left to the garbage collector.
+ *
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ *
+ */
+public class TileBitmapPool {
+
+	private static final String DT = "TileBitmapPool";
+
+	/**
+	 * Size of the temporary decoding buffer, as recommended by BitmapFactory
+	 */
+	private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
+	private static final Field inBitmap = optionsField("inBitmap");
+	private static final Field inMutable = optionsField("inMutable");
+
+	/**
+	 * true if Bitmaps can be decoded into existing ones
+	 */
+	private static final boolean REUSE_SUPPORTED = Build.VERSION.SDK_INT >= 11
+			&& inBitmap != null && inMutable != null;
+
+	/**
+	 * Bitmaps removed from the cache, maybe still drawn in this frame
+	 */
+	private ArrayList<Bitmap> pending;
+
+	/**
+	 * Bitmaps which are not drawn anymore and may be reused
+	 */
+	private ArrayList<Bitmap> available;
+
+	private int maxAvailable;
+
+	private int reuseCount;
+
+	/**
+	 * Bitmaps cached by several BitmapCaches, they are never reused
+	 */
+	private static final WeakHashMap<Bitmap, Boolean> shared = new WeakHashMap<Bitmap, Boolean>();
+
+	/**
+	 * Decoding buffer per loading thread
+	 */
+	private final ThreadLocal<byte[]> tempStorage = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[TEMP_STORAGE_SIZE];
+		}
+	};
+
+	/**
+	 * Instantiate a new TileBitmapPool
+	 *
+	 * @param maxAvailable
+	 *            maximum count of Bitmaps held for reuse, more will be
+	 *            recycled
+	 */
+	public TileBitmapPool(int maxAvailable) {
+		this.pending = new ArrayList<Bitmap>();
+		this.available = new ArrayList<Bitmap>();
+		this.maxAvailable = maxAvailable;
+	}
+
+	/**
+	 * Hand over a Bitmap that is not referenced by any cache anymore.
+	 *
+	 * @param bitmap
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		if (!isShared(bitmap)) {
+			pending.add(bitmap);
+		}
+	}
+
+	/**
+	 * Mark a Bitmap which is cached by several BitmapCaches, so it will
+	 * neither be reused nor recycled if one of them removes it.
+	 *
+	 * @param bitmap
+	 */
+	public static void markShared(Bitmap bitmap) {
+		synchronized (shared) {
+			shared.put(bitmap, Boolean.TRUE);
+		}
+	}
+
+	private static boolean isShared(Bitmap bitmap) {
+		synchronized (shared) {
+			return shared.containsKey(bitmap);
+		}
+	}
+
+	/**
+	 * Must be called by the drawing thread at the beginning of every frame.
+	 * All Bitmaps released until now cannot be drawn anymore and will become
+	 * available for reuse or will be recycled.
+	 */
+	public synchronized void onFrame() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		for (Bitmap b : pending) {
+			if (REUSE_SUPPORTED && b.isMutable()
+					&& available.size() < maxAvailable) {
+				available.add(b);
+			} else {
+				b.recycle();
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Recycle all pooled Bitmaps. Only call from the drawing thread.
+	 */
+	public synchronized void clear() {
+		onFrame();
+		for (Bitmap b : available) {
+			b.recycle();
+		}
+		available.clear();
+	}
+
+	/**
+	 * Decode a part. If possible, a pooled Bitmap will be reused.
+	 *
+	 * @param data
+	 *            encoded image
+	 * @param config
+	 *            preferred Bitmap.Config, e.g. RGB_565 for opaque parts
+	 * @return the decoded Bitmap or null if the data could not be decoded
+	 */
+	public Bitmap decode(byte[] data, Bitmap.Config config) {
+		return decode(data, config, WMSUtils.WIDTH, WMSUtils.HEIGHT);
+	}
+
+	/**
+	 * Decode an image with the given size, e.g. the image of a
+	 * {@link MetaTile}. If the encoded image is larger, it is subsampled
+	 * while decoding. The decoded image is scaled if it still differs.
+	 * 
+	 * @param data
+	 *            encoded image
+	 * @param config
+	 *            preferred Bitmap.Config, e.g. RGB_565 for opaque parts
+	 * @param width
+	 *            width of the returned Bitmap
+	 * @param height
+	 *            height of the returned Bitmap
+	 * @return the decoded Bitmap or null if the data could not be decoded
+	 */
+	public Bitmap decode(byte[] data, Bitmap.Config config, int width,
+			int height) {
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+			return null;
+		}
+
+		int sampleSize = 1;
+		while (bounds.outWidth / (sampleSize * 2) >= width
+				&& bounds.outHeight / (sampleSize * 2) >= height) {
+			sampleSize *= 2;
+		}
+		/*
+		 * a pooled Bitmap only fits an image with the size of a part
+		 */
+		final boolean reuse = sampleSize == 1 && bounds.outWidth == width
+				&& bounds.outHeight == height && width == WMSUtils.WIDTH
+				&& height == WMSUtils.HEIGHT;
+
+		Bitmap image = decode(data, config, sampleSize, reuse);
+		if (image != null
+				&& (image.getWidth() != width || image.getHeight() != height)) {
+			Bitmap scaled = Bitmap.createScaledBitmap(image, width, height,
+					true);
+			if (scaled != image) {
+				image.recycle();
+			}
+			image = scaled;
+		}
+		return image;
+	}
+
+	private Bitmap decode(byte[] data, Bitmap.Config config, int sampleSize,
+			boolean reuse) {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inPreferredConfig = config;
+		opts.inSampleSize = sampleSize;
+		opts.inTempStorage = tempStorage.get();
+
+		if (REUSE_SUPPORTED && reuse) {
+			Bitmap pooled = obtain(config);
+			try {
+				inMutable.setBoolean(opts, true);
+				if (pooled != null) {
+					inBitmap.set(opts, pooled);
+				}
+				Bitmap ret = BitmapFactory.decodeByteArray(data, 0,
+						data.length, opts);
+				if (pooled != null) {
+					synchronized (this) {
+						reuseCount++;
+					}
+				}
+				return ret;
+			} catch (IllegalArgumentException e) {
+				/*
+				 * the pooled Bitmap does not fit, e.g. the server returned
+				 * another size
+				 */
+				if (pooled != null) {
+					pooled.recycle();
+				}
+			} catch (IllegalAccessException e) {
+				Log.w(DT, e);
+			}
+			opts = new BitmapFactory.Options();
+			opts.inPreferredConfig = config;
+			opts.inSampleSize = sampleSize;
+			opts.inTempStorage = tempStorage.get();
+		}
+		return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+	}
+
+	/**
+	 * Copy a part out of a larger Bitmap. If possible, a pooled Bitmap will
+	 * be reused.
+	 * 
+	 * @param source
+	 *            e.g. the decoded image of a {@link MetaTile}
+	 * @param x
+	 *            left border of the part in the source
+	 * @param y
+	 *            top border of the part in the source
+	 * @param config
+	 *            Bitmap.Config of the part
+	 * @return a mutable Bitmap with the size of a part
+	 */
+	public Bitmap cut(Bitmap source, int x, int y, Bitmap.Config config) {
+		Bitmap target = create(config);
+		new Canvas(target).drawBitmap(source, -x, -y, null);
+		return target;
+	}
+
+	/**
+	 * Get a transparent Bitmap with the size of a part to draw on. If
+	 * possible, a pooled Bitmap will be reused.
+	 * 
+	 * @param config
+	 *            Bitmap.Config of the part
+	 * @return a mutable Bitmap with the size of a part
+	 */
+	public Bitmap create(Bitmap.Config config) {
+		Bitmap target = REUSE_SUPPORTED ? obtain(config) : null;
+		if (target == null) {
+			target = Bitmap.createBitmap(WMSUtils.WIDTH, WMSUtils.HEIGHT,
+					config);
+		} else {
+			target.eraseColor(Color.TRANSPARENT);
+			synchronized (this) {
+				reuseCount++;
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * @return count of decodes which reused a pooled Bitmap
+	 */
+	public synchronized int getReuseCount() {
+		return reuseCount;
+	}
+
+	private synchronized Bitmap obtain(Bitmap.Config config) {
+		for (int i = available.size() - 1; i >= 0; i--) {
+			Bitmap b = available.get(i);
+			if (b.getConfig() == config && b.getWidth() == WMSUtils.WIDTH
+					&& b.getHeight() == WMSUtils.HEIGHT) {
+				return available.remove(i);
+			}
+		}
+		return null;
+	}
+
+	private static Field optionsField(String name) {
+		try {
+			return BitmapFactory.Options.class.getField(name);
+		} catch (NoSuchFieldException e) {
+			return null;
+		}
+	}
+}
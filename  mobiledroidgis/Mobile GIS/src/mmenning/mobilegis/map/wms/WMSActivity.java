@@ -76,6 +76,7 @@ public class WMSActivity extends Activity {
 	 * Constants to manage menu
 	 */
 	private static final int ADD = 4;
+	private static final int DIAGNOSTICS = 5;
 
 	/*
 	 * Constants to manage dialogs
@@ -107,6 +108,8 @@ public class WMSActivity extends Activity {
 		menu.add(0, ADD, 0, R.string.addwms).setIcon(R.drawable.menu_add);
 		menu.add(0, GOBACKFAST, 0, R.string.gobackfast).setIcon(
 				R.drawable.menu_map);
+		menu.add(0, DIAGNOSTICS, 0, R.string.diagnostics).setIcon(
+				R.drawable.menu_time);
 		return true;
 	}
 
@@ -121,6 +124,9 @@ public class WMSActivity extends Activity {
 			this.setResult(WMSLayerActivity.GOBACK_FAST);
 			this.finish();
 			return true;
+		case DIAGNOSTICS:
+			startActivity(new Intent(this, WMSDiagnosticsActivity.class));
+			return true;
 		}
 
 		return super.onMenuItemSelected(featureId, item);
@@ -57,7 +57,7 @@ public class WMSDB {
 	 */
 	private static final String DATABASE_NAME = "WMSData";
 
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 2;
 	/*
 	 * Constants to generate and administrate the tables
 	 */
@@ -84,6 +84,12 @@ public class WMSDB {
 	public static final String WMS_visible = "visible";
 	public static final String WMS_supportsPNG = "supportsPNG";
 	public static final String WMS_priority = "priority";
+	/**
+	 * GetMap formats separated by {@link #FORMAT_SEPARATOR}, since version 2
+	 */
+	public static final String WMS_formats = "formats";
+
+	private static final String FORMAT_SEPARATOR = ",";
 
 	public static final String SRS_layer = "Layer";
 	public static final String SRS_srs = "SRS";
@@ -116,7 +122,7 @@ public class WMSDB {
 			+ WMS_description + " TEXT, " + WMS_getMapURL + " TEXT, "
 			+ WMS_name + " TEXT, " + WMS_rootLayer + " INTEGER, " + WMS_title
 			+ " TEXT, " + WMS_supportsPNG + " INTEGER, " + WMS_priority
-			+ " INTEGER)";
+			+ " INTEGER, " + WMS_formats + " TEXT)";
 	private static final String CREATE_LAYER = "CREATE TABLE " + LAYER_TABLE
 			+ " " + "(" + LAYER_selectedSRS + " INTEGER, " + LAYER_bbox_maxy
 			+ " REAL, " + "" + LAYER_bbox_miny + " REAL, " + ""
@@ -184,6 +190,14 @@ public class WMSDB {
 			values.put(WMS_version, in.version);
 			values.put(WMS_getMapURL, in.getMapURL);
 			values.put(WMS_supportsPNG, in.supportsPNG ? TRUE : FALSE);
+			StringBuilder formats = new StringBuilder();
+			for (String format : in.formats) {
+				if (formats.length() > 0) {
+					formats.append(FORMAT_SEPARATOR);
+				}
+				formats.append(format);
+			}
+			values.put(WMS_formats, formats.toString());
 			values.put(WMS_visible, FALSE);
 			final int rootLayerID = getNextlayerID();
 			values.put(WMS_rootLayer, rootLayerID);
@@ -482,6 +496,45 @@ public class WMSDB {
 		return ret;
 	}
 
+	/**
+	 * query the bounding box of all visible layers of a wms. contains to ?
+	 * which should be filled with the wmsID
+	 */
+	private static final String selectVisibleLayerBounds = "SELECT MIN("
+			+ LAYER_bbox_minx + "), MIN(" + LAYER_bbox_miny + "), MAX("
+			+ LAYER_bbox_maxx + "), MAX(" + LAYER_bbox_maxy + ") FROM "
+			+ LAYER_TABLE + " WHERE " + LAYER_visible + "=" + TRUE + " AND "
+			+ LAYER_wms + "=?" + " AND " + LAYER_rootLayer + " NOT IN "
+			+ "(SELECT " + ID + " FROM " + LAYER_TABLE + " WHERE "
+			+ LAYER_visible + "=" + TRUE + " AND " + LAYER_wms + "=?)";
+
+	/**
+	 * Get the bounding box containing the LatLonBoundingBoxes of all visible
+	 * layers.
+	 * 
+	 * @param wmsID
+	 *            id of the wms
+	 * @return minx, miny, maxx and maxy in degrees, or null if no layer is
+	 *         visible
+	 * @see {@link WMSDB.getVisibleLayerNames}
+	 */
+	public float[] getVisibleLayerBounds(int wmsID) {
+
+		float[] ret = null;
+
+		Cursor c = db.rawQuery(selectVisibleLayerBounds, new String[] {
+				"" + wmsID, "" + wmsID });
+
+		if (c.moveToFirst() && !c.isNull(0)) {
+			ret = new float[] { c.getFloat(0), c.getFloat(1), c.getFloat(2),
+					c.getFloat(3) };
+		}
+
+		c.close();
+
+		return ret;
+	}
+
 	/**
 	 * Get a list of IDs for all visible wms.
 	 * 
@@ -540,6 +593,22 @@ public class WMSDB {
 		return ret;
 	}
 
+	/**
+	 * Get the formats the GetMap request of a WMS supports.
+	 * 
+	 * @param wmsID
+	 *            id of the requested wms
+	 * @return MIME types of the supported images, empty if they are unknown,
+	 *         e.g. because the WMS was added by an older version
+	 */
+	public String[] getFormats(int wmsID) {
+		String formats = getWMSData(wmsID, WMS_formats);
+		if (formats == null || formats.length() == 0) {
+			return new String[0];
+		}
+		return formats.split(FORMAT_SEPARATOR);
+	}
+
 	/**
 	 * Get Data of a WMS as String. This method starts a simple query for the
 	 * requested attribute.
@@ -855,6 +924,15 @@ public class WMSDB {
 		public void onUpgrade(SQLiteDatabase sqldb, int oldVersion,
 				int newVersion) {
 
+			if (oldVersion == 1) {
+				/*
+				 * only the formats were added, keep the stored WMS
+				 */
+				sqldb.execSQL("ALTER TABLE " + WMS_TABLE + " ADD COLUMN "
+						+ WMS_formats + " TEXT");
+				return;
+			}
+
 			sqldb.execSQL("DROP TABLE IF EXISTS " + SRS_TABLE);
 			sqldb.execSQL("DROP TABLE IF EXISTS " + WMS_TABLE);
 			sqldb.execSQL("DROP TABLE IF EXISTS " + LAYER_TABLE);
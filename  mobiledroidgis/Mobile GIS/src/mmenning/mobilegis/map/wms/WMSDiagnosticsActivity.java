@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.io.File;
+import java.io.IOException;
+
+import mmenning.mobilegis.R;
+import mmenning.mobilegis.database.SQLiteOnSDCard;
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Activity to display the {@link WMSMetrics} of all WMSLoaders. The report
+ * can be refreshed and saved to a file next to the databases.
+ * 
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ * 
+ */
+public class WMSDiagnosticsActivity extends Activity {
+
+	private static final String DT = "WMSDiagnosticsActivity";
+
+	/*
+	 * Constants to manage menu
+	 */
+	private static final int REFRESH = 1;
+	private static final int SAVE = 2;
+
+	private TextView report;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		this.setContentView(R.layout.wmsdiagnosticsview);
+		report = (TextView) this.findViewById(R.id.wmsdiagnosticsview_report);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		report.setText(WMSMetrics.report());
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		menu.add(0, REFRESH, 0, R.string.refresh).setIcon(
+				R.drawable.menu_refresh);
+		menu.add(0, SAVE, 0, R.string.save_to_file).setIcon(
+				R.drawable.menu_save);
+		return true;
+	}
+
+	@Override
+	public boolean onMenuItemSelected(int featureId, MenuItem item) {
+		switch (item.getItemId()) {
+
+		case REFRESH:
+			report.setText(WMSMetrics.report());
+			return true;
+		case SAVE:
+			save();
+			return true;
+		}
+
+		return super.onMenuItemSelected(featureId, item);
+	}
+
+	/**
+	 * Write the current report to a new file and tell the user where it is.
+	 */
+	private void save() {
+		File dir = SQLiteOnSDCard.getDirectory(this);
+		File file = new File(dir, "wms_metrics_" + System.currentTimeMillis()
+				+ ".txt");
+		try {
+			dir.mkdirs();
+			WMSMetrics.dump(file);
+			Toast.makeText(this,
+					getString(R.string.diagnostics_saved, file.getPath()),
+					Toast.LENGTH_LONG).show();
+		} catch (IOException e) {
+			Log.w(DT, e);
+			Toast.makeText(this, R.string.diagnostics_not_saved,
+					Toast.LENGTH_SHORT).show();
+		}
+	}
+}
@@ -16,65 +16,165 @@
 package mmenning.mobilegis.map.wms;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Random;
 
+import mmenning.mobilegis.database.TileContainer;
+import mmenning.mobilegis.database.TileDiskCache;
+import mmenning.mobilegis.database.TileDiskCache.CacheHeaders;
 import mmenning.mobilegis.map.wms.PriorityLoadingManager.Entry;
+import mmenning.mobilegis.util.LongLruMap;
+import android.database.SQLException;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.android.maps.GeoPoint;
-import com.google.android.maps.Projection;
-
 /**
- * Manages Storage and Loading of WMS Images. The Parts must be identified
- * definite by a Key K. Supports WMS Specification: </br> WMS 1.1.1 </br> OGC
+ * Manages Storage and Loading of WMS Images. The Parts are identified
+ * definite by a primitive key, see {@link WMSUtils#partKey(int, int, int)}.
+ * Supports WMS Specification: </br> WMS 1.1.1 </br> OGC
  * 01-068r3 </br>
  * 
- * The local Cache will only hold a specific amount of parts and delete the
- * oldest if it exceeds the limit.
+ * Parts are loaded by the {@link WMSLoadingPool} shared by all WMSLoaders.
+ * They may be requested one by one or in blocks of {@link MetaTile}s.
+ * 
+ * The local Cache is a {@link BitmapCache} which may be shared with other
+ * WMSLoaders. It will only hold a specific amount of parts and delete the
+ * oldest if it exceeds the limit. Parts which are not in the local Cache will
+ * be looked up in a {@link TileDiskCache} before they are requested from the
+ * server. Expired parts of the TileDiskCache are revalidated with a
+ * conditional request, unless there is no network connection: then they are
+ * used as they are.
+ * 
+ * Parts are addressed by their column and row in the global tile matrix of
+ * the spherical mercator projection, see {@link WMSUtils#partKey(int, int,
+ * int)}, so the GetMap requests do not depend on the screen. Instead of a
+ * WMS, the parts may be read from a {@link TileContainer}.
+ * 
+ * Looking up a cached part allocates nothing, GetMap URLs are only built by
+ * the loading threads.
+ * 
+ * A part which could not be loaded is not requested again before a retry
+ * time, which grows exponentially with every failure. The Handler will be
+ * notified with RETRY once a failed visible part may be requested again.
+ * 
+ * Every WMSLoader is sampled by the {@link WMSMetrics}, which also receive
+ * the durations of queueing, downloading and decoding.
  * 
  * @author Mathias Menninghaus
  * @version 23.10.2009
  * 
  * @see {@link WMSUtils}
- * 
- * @param <K> key Type
  */
-public class WMSLoader<K> {
+public class WMSLoader {
 
 	private static final String DT = "WMSLoader";
 
 	/**
-	 * If loading of an image succedes. Loading Threads will notify their
-	 * termination with STOP.
+	 * If loading of an image succedes. The loading of every part will be
+	 * finished with STOP.
 	 */
 	public static final int LOADSUCCESS = 0;
 	/**
-	 * If loading of an image fails. Loading Threads will notify their
-	 * termination with STOP.
+	 * If loading of an image fails. The loading of every part will be
+	 * finished with STOP.
 	 */
 	public static final int LOADFAIL = 1;
 	/**
-	 * If a Thread starts
+	 * If the loading of a part starts
 	 */
 	public static final int START = 2;
 	/**
-	 * If a Thread ends.
+	 * If the loading of a part ends.
 	 */
 	public static final int STOP = 3;
+	/**
+	 * If a part whose loading failed may be requested again.
+	 */
+	public static final int RETRY = 4;
 
 	private String getMapBaseURL;
 
-	private PriorityMapQueue<K, Bitmap> wmsParts;
+	private BitmapCache wmsParts;
 
-	private PriorityLoadingManager<K, String> partsToLoad;
+	/**
+	 * definite identifier of this WMSLoader in the shared BitmapCache, see
+	 * {@link WMSUtils#layerKey(int, long)}
+	 */
+	private int layerID;
+
+	private PriorityLoadingManager<Long, PartRequest> partsToLoad;
 
-	private Thread[] loadingThreads;
+	private WMSLoadingPool pool;
+
+	/**
+	 * Host of the getMapBaseURL, to limit the requests per server
+	 */
+	private String host;
+
+	/**
+	 * Requests of all currently loaded parts
+	 */
+	private HttpFetcher fetcher;
 
 	private Handler handler;
 
+	private TileDiskCache diskCache;
+
+	/**
+	 * Bitmap.Config to decode parts with
+	 */
+	private Bitmap.Config config;
+
+	/**
+	 * the parts are read from instead of the WMS, or null
+	 */
+	private TileContainer container;
+
+	/**
+	 * maximum count of missing parts remembered
+	 */
+	private static final int MAX_MISSING = 4096;
+
+	/**
+	 * parts the container does not contain, they are not read again. The
+	 * least recently checked ones are forgotten first.
+	 */
+	private final LongLruMap<Boolean> missing = new LongLruMap<Boolean>(
+			MAX_MISSING, MAX_MISSING);
+
+	/**
+	 * maximum count of failed parts remembered
+	 */
+	private static final int MAX_FAILURES = 1024;
+
+	/**
+	 * parts and MetaTiles whose loading failed, they are not requested again
+	 * before their retry time
+	 */
+	private final LongLruMap<Failure> failures = new LongLruMap<Failure>(
+			MAX_FAILURES, MAX_FAILURES);
+
+	/**
+	 * jitter of the retry times, so the failed parts of many devices are not
+	 * requested in sync
+	 */
+	private final Random random = new Random();
+
+	/**
+	 * visible parts found or not found in the Cache, only counted by the
+	 * drawing thread
+	 */
+	private int hitCount;
+	private int missCount;
+
+	/**
+	 * count of failed parts and MetaTiles, guarded by failures
+	 */
+	private int failureCount;
+
 	/**
 	 * Instantiate a new WMSLoader.
 	 * 
@@ -82,15 +182,60 @@ public class WMSLoader<K> {
 	 *            BaseURL for WMS requests. {@link WMSUtils}
 	 * @param handler
 	 *            Handler to handle LoadingThread events.
+	 * @param layerID
+	 *            definite identifier of the getMapBaseURL within the
+	 *            BitmapCache, less than {@link WMSUtils#MAXLayers}
+	 * @param bitmapCache
+	 *            first level cache for loaded parts, may be shared with other
+	 *            WMSLoaders
+	 * @param diskCache
+	 *            second level cache for loaded parts, may be shared with other
+	 *            WMSLoaders
+	 * @param opaque
+	 *            true if the parts need no transparency, they will be decoded
+	 *            with RGB_565 which halves the memory per part
 	 */
-	public WMSLoader(String getMapBaseURL, Handler handler) {
-		this.wmsParts = new PriorityMapQueue<K, Bitmap>(
-				WMSUtils.AVERAGEStoredBitmapsPerLoader,
-				WMSUtils.MAXStoredBitmapsPerLoader);
-		this.partsToLoad = new PriorityLoadingManager<K, String>();
+	public WMSLoader(String getMapBaseURL, Handler handler, int layerID,
+			BitmapCache bitmapCache, TileDiskCache diskCache,
+			boolean opaque) {
+		this.wmsParts = bitmapCache;
+		this.layerID = layerID;
+		this.partsToLoad = new PriorityLoadingManager<Long, PartRequest>();
 		this.getMapBaseURL = getMapBaseURL;
-		loadingThreads = new Thread[WMSUtils.MAXTHREADSPerLoader];
+		this.pool = WMSLoadingPool.getShared();
+		this.fetcher = new HttpFetcher();
+		try {
+			this.host = new URL(getMapBaseURL).getHost();
+		} catch (MalformedURLException e) {
+			this.host = getMapBaseURL;
+		}
 		this.handler = handler;
+		this.diskCache = diskCache;
+		this.config = opaque ? Bitmap.Config.RGB_565
+				: Bitmap.Config.ARGB_8888;
+		WMSMetrics.register(this);
+	}
+
+	/**
+	 * Instantiate a new WMSLoader which reads the parts from a TileContainer.
+	 * 
+	 * @param container
+	 *            the tiles to display
+	 * @param handler
+	 *            Handler to handle LoadingThread events.
+	 * @param layerID
+	 *            definite identifier of the container within the BitmapCache
+	 * @param bitmapCache
+	 *            cache for loaded parts, may be shared with other WMSLoaders
+	 * @param opaque
+	 *            true if the parts need no transparency, they will be decoded
+	 *            with RGB_565 which halves the memory per part
+	 */
+	public WMSLoader(TileContainer container, Handler handler, int layerID,
+			BitmapCache bitmapCache, boolean opaque) {
+		this(null, handler, layerID, bitmapCache, null, opaque);
+		this.container = container;
+		this.host = container.getPath();
 	}
 
 	/**
@@ -101,71 +246,270 @@ public class WMSLoader<K> {
 	 * 
 	 * @param key
 	 *            definite identifier for the part to be loaded
-	 * @param left
-	 *            left coordinate for the part in screenpixels
-	 * @param top
-	 *            top coordinate for the part in screenpixels
-	 * @param p
-	 *            projection with which the corners of the part can be
-	 *            calculated
+	 * @param zoom
+	 *            zoom level of the part
+	 * @param column
+	 *            column of the part, see {@link WMSUtils#partKey(int, int,
+	 *            int)}
+	 * @param row
+	 *            row of the part
 	 * @return Bitmap or null if it is not yet cached.
 	 */
-	public Bitmap loadMap(K key, int left, int top, Projection p) {
+	public Bitmap loadMap(long key, int zoom, int column, int row) {
+		return loadMap(key, zoom, column, row, PriorityLoadingManager.HEAD);
+	}
 
-		Bitmap ret = wmsParts.getWithUpdate(key);
+	/**
+	 * Get a WMSPart specified with a key like
+	 * {@link #loadMap(long, int, int, int)}, but load it with the given
+	 * priority if it is not cached.
+	 * 
+	 * @param key
+	 *            definite identifier for the part to be loaded
+	 * @param zoom
+	 *            zoom level of the part
+	 * @param column
+	 *            column of the part, see {@link WMSUtils#partKey(int, int,
+	 *            int)}
+	 * @param row
+	 *            row of the part
+	 * @param priority
+	 *            parts with lower priority are loaded first, e.g. the
+	 *            distance to the predicted center of the viewport
+	 * @return Bitmap or null if it is not yet cached.
+	 */
+	public Bitmap loadMap(long key, int zoom, int column, int row,
+			float priority) {
 
-		/*
-		 * DEBUG
-		 */
-		/*
-		 * END DEBUG
-		 */
+		Bitmap ret = getVisibleMap(key);
 
-		if (ret == null) {
+		if (ret == null && !isMissing(key) && !isBackingOff(key)
+				&& !partsToLoad.threadRunsOrIsInQueue(key, priority)) {
 			/*
-			 * if this part is neither currently loaded by a thread nor in the
-			 * loading Queue
+			 * neither currently loaded by a thread nor in the loading Queue
 			 */
-			if (!partsToLoad.threadRunsOrIsInQueue(key)) {
-				/*
-				 * build the url for getMap request
-				 */
-				GeoPoint[] corners;
-				corners = WMSUtils.corners(left, top, p);
-				String getMapURL = WMSUtils.generateGetMapURL(getMapBaseURL,
-						corners[WMSUtils.LOWERLEFT],
-						corners[WMSUtils.UPPERRIGHT]);
+			partsToLoad.insertIntoLoadingQueue(key, new PartRequest(zoom,
+					column, row, false, null), priority);
 
-				/*
-				 * insert to the head of the loading Queue
-				 */
-				partsToLoad.insertIntoLoadingQueue(key, getMapURL);
+			pool.schedule(this);
+		}
+		return ret;
 
-				/*
-				 * try to start a thread for this if place is available
-				 */
-				for (int i = 0; i < loadingThreads.length; i++) {
-					if (loadingThreads[i] == null
-							|| !loadingThreads[i].isAlive()) {
-						loadingThreads[i] = new Thread(
-								new LoaderThread(handler));
-						loadingThreads[i].start();
-						i += loadingThreads.length;
-					}
+	}
+
+	/**
+	 * Load a part with low priority if it is neither cached nor loaded yet.
+	 * Prefetched parts are only loaded if no part requested by loadMap() is
+	 * waiting. An already prefetched part keeps the lower priority. The
+	 * Handler will not be notified about prefetched parts.
+	 * 
+	 * @param key
+	 *            definite identifier for the part to be loaded
+	 * @param zoom
+	 *            zoom level of the part
+	 * @param column
+	 *            column of the part, see {@link WMSUtils#partKey(int, int,
+	 *            int)}
+	 * @param row
+	 *            row of the part
+	 * @param diskOnly
+	 *            true if the part should only be stored in the TileDiskCache
+	 *            and not be decoded, e.g. for parts of other zoom levels
+	 * @param priority
+	 *            prefetched parts with lower priority are loaded first
+	 */
+	public void prefetchMap(long key, int zoom, int column, int row,
+			boolean diskOnly, float priority) {
+		if (wmsParts.contains(WMSUtils.layerKey(layerID, key))
+				|| partsToLoad.threadRuns(key) || isMissing(key)
+				|| isBackingOff(key)) {
+			return;
+		}
+		if (container != null && diskOnly) {
+			/*
+			 * a TileContainer is as fast as the TileDiskCache
+			 */
+			return;
+		}
+		partsToLoad.insertIntoPrefetchQueue(key, new PartRequest(zoom, column,
+				row, diskOnly, null), priority);
+
+		pool.schedule(this);
+	}
+
+	/**
+	 * Get a WMSPart specified with a key from the Cache without loading it.
+	 * 
+	 * @param key
+	 *            definite identifier for the part
+	 * @return Bitmap or null if it is not yet cached.
+	 */
+	public Bitmap getMap(long key) {
+		return wmsParts.getWithUpdate(WMSUtils.layerKey(layerID, key));
+	}
+
+	/**
+	 * Get a visible WMSPart from the Cache without loading it like
+	 * {@link #getMap(long)}, but count it as hit or miss. Parts which are
+	 * only drawn as fallback should not be counted.
+	 * 
+	 * @param key
+	 *            definite identifier for the part
+	 * @return Bitmap or null if it is not yet cached.
+	 */
+	public Bitmap getVisibleMap(long key) {
+		Bitmap ret = getMap(key);
+		if (ret != null) {
+			hitCount++;
+		} else {
+			missCount++;
+		}
+		return ret;
+	}
+
+	/**
+	 * Load all parts of a MetaTile with one request if it is not loaded yet.
+	 * The Handler will be notified like for parts requested by loadMap().
+	 * 
+	 * @param meta
+	 *            the block containing a part which is not cached
+	 * @param priority
+	 *            parts with lower priority are loaded first
+	 */
+	public void loadMetaTile(MetaTile meta, float priority) {
+		if (container != null) {
+			/*
+			 * a TileContainer stores every part on its own
+			 */
+			int i = 0;
+			for (int r = 0; r < meta.rows; r++) {
+				for (int c = 0; c < meta.columns; c++, i++) {
+					loadMap(meta.parts[i], meta.zoom, meta.column + c,
+							meta.row + r, priority);
 				}
 			}
+			return;
+		}
+		if (!isBackingOff(meta.key)
+				&& !partsToLoad.threadRunsOrIsInQueue(meta.key, priority)) {
+			partsToLoad.insertIntoLoadingQueue(meta.key, new PartRequest(
+					meta.zoom, meta.column, meta.row, false, meta), priority);
 
+			pool.schedule(this);
 		}
-		return ret;
+	}
+
+	/**
+	 * Load all parts of a MetaTile with low priority like
+	 * {@link #prefetchMap(long, int, int, int, boolean, float)}.
+	 * 
+	 * @param meta
+	 *            the block to be loaded
+	 * @param diskOnly
+	 *            true if the block should only be stored in the TileDiskCache
+	 *            and not be decoded
+	 * @param priority
+	 *            prefetched parts with lower priority are loaded first
+	 */
+	public void prefetchMetaTile(MetaTile meta, boolean diskOnly,
+			float priority) {
+		if (container != null) {
+			int i = 0;
+			for (int r = 0; r < meta.rows; r++) {
+				for (int c = 0; c < meta.columns; c++, i++) {
+					prefetchMap(meta.parts[i], meta.zoom, meta.column + c,
+							meta.row + r, diskOnly, priority);
+				}
+			}
+			return;
+		}
+		if (partsToLoad.threadRuns(meta.key) || isBackingOff(meta.key)
+				|| (!diskOnly && isCached(meta))) {
+			return;
+		}
+		partsToLoad.insertIntoPrefetchQueue(meta.key, new PartRequest(
+				meta.zoom, meta.column, meta.row, diskOnly, meta), priority);
+
+		pool.schedule(this);
+	}
+
+	private boolean isCached(MetaTile meta) {
+		for (long part : meta.parts) {
+			if (!wmsParts.contains(WMSUtils.layerKey(layerID, part))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the TileContainer is known not to contain the part
+	 */
+	private boolean isMissing(long key) {
+		if (container == null) {
+			return false;
+		}
+		return missing.getWithUpdate(key) != null;
+	}
+
+	/**
+	 * @return true if loading the part or MetaTile failed and its retry time
+	 *         has not come yet
+	 */
+	private boolean isBackingOff(long key) {
+		synchronized (failures) {
+			Failure f = failures.getWithUpdate(key);
+			return f != null && SystemClock.uptimeMillis() < f.retryTime;
+		}
+	}
+
+	/**
+	 * Remember that loading a part or MetaTile failed. The delay until it is
+	 * requested again doubles with every failure, but only half of it is
+	 * fixed and the other half random.
+	 * 
+	 * @param notify
+	 *            true to notify the Handler with RETRY after the delay
+	 */
+	private void recordFailure(long key, boolean notify) {
+		long delay;
+		synchronized (failures) {
+			Failure f = failures.getWithUpdate(key);
+			if (f == null) {
+				f = new Failure();
+				failures.insertWithoutUpdate(key, f);
+			}
+			f.count++;
+			failureCount++;
+			final long max = Math.min(WMSUtils.MAXRetryDelay,
+					(long) WMSUtils.RETRYDelay << Math.min(f.count - 1, 16));
+			delay = max / 2 + (long) (random.nextFloat() * (max / 2));
+			f.retryTime = SystemClock.uptimeMillis() + delay;
+		}
+		if (notify) {
+			handler.sendEmptyMessageDelayed(WMSLoader.RETRY, delay);
+		}
+	}
 
+	/**
+	 * Build the GetMap request for a part or MetaTile. The URL is computed
+	 * from the global tile matrix only, so it is the same on every device.
+	 */
+	private String getMapURL(PartRequest request) {
+		final MetaTile meta = request.meta;
+		return meta == null ? WMSUtils.generateGetMapURL(getMapBaseURL,
+				request.zoom, request.column, request.row) : WMSUtils
+				.generateGetMapURL(getMapBaseURL, request.zoom,
+						request.column, request.row, meta.columns, meta.rows);
 	}
 
 	/**
-	 * Stop Loading of all Parts. The Threads will finish their current task and
-	 * not being interrupted.
+	 * Stop Loading of all Parts. Queued parts are dropped and the connections
+	 * of parts which are currently loaded are aborted.
 	 */
 	public void stopLoading() {
 		partsToLoad.clearLoadingQueue();
+		fetcher.abort();
 	}
 
 	@Override
@@ -175,70 +519,411 @@ public class WMSLoader<K> {
 	}
 
 	/**
-	 * Inner Class to manage Loading from the Loading Queue.
+	 * Host the parts are loaded from.
 	 * 
-	 * @author Mathias Menninghaus
-	 * @version 23.10.2009
+	 * @return host of the getMapBaseURL
+	 */
+	String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return definite identifier of the parts in the BitmapCache
+	 */
+	int getLayerID() {
+		return layerID;
+	}
+
+	/**
+	 * @return {@link WMSUtils.getMapBaseURL} the parts are loaded from, or
+	 *         null if they are read from a TileContainer
+	 */
+	public String getMapBaseURL() {
+		return getMapBaseURL;
+	}
+
+	/**
+	 * @return the getMapBaseURL or the name of the TileContainer
+	 */
+	String getName() {
+		return container != null ? container.getName() : getMapBaseURL;
+	}
+
+	/**
+	 * @return the Cache of the loaded parts
+	 */
+	BitmapCache getBitmapCache() {
+		return wmsParts;
+	}
+
+	/**
+	 * @return count of visible parts found in the Cache
+	 */
+	int getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return count of visible parts not found in the Cache
+	 */
+	int getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return count of parts and MetaTiles whose loading failed
+	 */
+	int getFailureCount() {
+		synchronized (failures) {
+			return failureCount;
+		}
+	}
+
+	/**
+	 * Count of parts waiting to be loaded.
+	 * 
+	 * @return size of the loading Queue
+	 */
+	int queuedParts() {
+		return partsToLoad.size();
+	}
+
+	/**
+	 * Count of visible parts waiting to be loaded.
 	 * 
+	 * @return size of the foreground Queue
 	 */
-	private class LoaderThread implements Runnable {
+	int foregroundParts() {
+		return partsToLoad.foregroundSize();
+	}
 
-		private static final String DT = "WMSLoader.LoaderThread";
+	/**
+	 * Drop all parts waiting to be prefetched, e.g. because the viewport
+	 * moved on.
+	 */
+	public void clearPrefetch() {
+		partsToLoad.clearPrefetchQueue();
+	}
 
-		private Handler handler;
+	/**
+	 * Estimate whether parts requested by loadMap() are waiting to be loaded.
+	 * 
+	 * @return true if there are some, false if there are only prefetched
+	 *         parts or none
+	 */
+	boolean hasForegroundParts() {
+		return foregroundParts() > 0;
+	}
 
-		public LoaderThread(Handler handler) {
-			this.handler = handler;
+	/**
+	 * Load the first part of the loading Queue. Called by the Workers of the
+	 * {@link WMSLoadingPool}. The Handler will be notified with START, either
+	 * LOADSUCCESS or LOADFAIL, and STOP. Parts whose loading was aborted by
+	 * stopLoading() will neither be reported as success nor as failure.
+	 * Prefetched parts are not reported at all.
+	 */
+	void loadNext() {
+		/*
+		 * get a task an load the bitmap from this url
+		 */
+		Entry toLoad = partsToLoad.removeFirstAndStartLoading();
+
+		if (toLoad == null) {
+			return;
 		}
+		WMSMetrics.QUEUE_WAIT.add(SystemClock.uptimeMillis() - toLoad.queued);
 
-		public void run() {
+		final PartRequest request = (PartRequest) toLoad.value;
+		final boolean notify = !toLoad.prefetch;
+		final long key = (Long) toLoad.key;
+
+		if (notify) {
 			handler.sendEmptyMessage(WMSLoader.START);
-			/*
-			 * while their are already parts in the loading queue
-			 */
-			while (!WMSLoader.this.partsToLoad.isEmpty()) {
-				URL url = null;
-				Bitmap image = null;
+		}
 
+		if (container != null) {
+			try {
+				readFromContainer(key, request, notify);
+			} catch (SQLException e) {
+				Log.w(DT, e);
 				/*
-				 * get a task an load the bitmap from this url
+				 * a broken container would be queried again on every frame
 				 */
-				Entry toLoad = WMSLoader.this.partsToLoad
-						.removeFirstAndStartLoading();
+				missing.insertWithoutUpdate(key, Boolean.TRUE);
+				if (notify) {
+					handler.sendEmptyMessage(WMSLoader.LOADFAIL);
+				}
+			} finally {
+				partsToLoad.completeLoading(key);
+				if (notify) {
+					handler.sendEmptyMessage(WMSLoader.STOP);
+				}
+			}
+			return;
+		}
 
-				if (toLoad != null) {
+		URL url = null;
+		final int startGeneration = fetcher.generation();
+		final MetaTile meta = request.meta;
+		InFlightRequests.Request shared = null;
+		boolean sharedImageCached = false;
 
-					try {
-						url = new URL((String) toLoad.value);
+		try {
+			final String getMapURL = getMapURL(request);
+			url = new URL(getMapURL);
 
-						image = BitmapFactory.decodeStream(url.openStream());
+			/*
+			 * contains the getMapBaseURL, so parts of different WMSLoaders
+			 * will not be mixed up
+			 */
+			String cacheKey = WMSUtils.diskCacheKey(getMapBaseURL,
+					key);
 
-						if (image == null) {
-							throw new NullPointerException("Image " + url);
-						}
+			CacheHeaders stored = diskCache.getCacheHeaders(cacheKey);
 
-						WMSLoader.this.wmsParts.insertWithoutUpdate(
-								(K) toLoad.key, image);
-						handler.sendEmptyMessage(WMSLoader.LOADSUCCESS);
+			byte[] data = null;
+			/*
+			 * without network an outdated part is used at once instead of
+			 * waiting for the request to time out, e.g. parts stored by the
+			 * WMSSeeder for offline use
+			 */
+			if (stored != null
+					&& (stored.isFresh() || !HttpFetcher.isConnected())) {
+				if (request.diskOnly) {
+					return;
+				}
+				data = diskCache.get(cacheKey);
+			}
 
+			Bitmap image = null;
+			boolean sharedImage = false;
+			if (data != null) {
+				image = decode(data, meta);
+				if (image == null) {
+					diskCache.remove(cacheKey);
+				}
+			} else {
+				/*
+				 * other WMSLoaders or the WMSSeeder may load the same URL at
+				 * the moment, only one of them downloads and decodes it
+				 */
+				shared = InFlightRequests.join(getMapURL);
+				while (!shared.isLeader() && !shared.await()) {
+					shared = InFlightRequests.join(getMapURL);
+				}
+				if (shared.isLeader()) {
+					final long start = SystemClock.uptimeMillis();
+					try {
+						data = InFlightRequests.download(fetcher,
+								startGeneration, url, diskCache, cacheKey,
+								stored, meta == null ? 1 : meta.columns
+										* meta.rows);
+						final long latency = SystemClock.uptimeMillis() - start;
+						pool.report(host, latency, false);
+						WMSMetrics.DOWNLOAD.add(latency);
 					} catch (IOException e) {
-						Log.w(DT, "IO Exception while loading: " + url);
-						Log.w(DT, "IOException: " + e.getClass().getName());
+						if (fetcher.isAborted(startGeneration)) {
+							throw e;
+						}
+						final long latency = SystemClock.uptimeMillis() - start;
+						pool.report(host, latency, true);
+						WMSMetrics.DOWNLOAD.add(latency);
+						if (stored == null) {
+							throw e;
+						}
+						/*
+						 * an outdated part is better than none if the server
+						 * cannot be reached
+						 */
+						Log.d(DT, "could not revalidate " + url + ": "
+								+ e.getMessage());
+						data = diskCache.get(cacheKey);
+					}
+					if (data != null && !request.diskOnly) {
+						image = decode(data, meta);
+					}
+					shared.complete(data, image, config);
+				} else {
+					if (fetcher.isAborted(startGeneration)) {
+						throw new IOException("aborted while waiting");
+					}
+					data = shared.getData();
+					if (data == null && stored != null) {
+						data = diskCache.get(cacheKey);
+					}
+				}
+				if (request.diskOnly) {
+					return;
+				}
+				image = shared.getImage(config);
+				sharedImage = image != null;
+				if (image == null && data != null) {
+					image = decode(data, meta);
+				}
+			}
 
-						handler.sendEmptyMessage(WMSLoader.LOADFAIL);
+			if (image == null) {
+				throw new NullPointerException("Image " + url);
+			}
 
-					} catch (NullPointerException ex) {
-						Log.w(DT, ex);
-						handler.sendEmptyMessage(WMSLoader.LOADFAIL);
-					} finally {
-						WMSLoader.this.partsToLoad
-								.completeLoading((K) toLoad.key);
-					}
+			if (meta == null) {
+				if (sharedImage && shared.isShared()) {
+					TileBitmapPool.markShared(image);
 				}
+				sharedImageCached = sharedImage;
+				wmsParts.insertWithoutUpdate(WMSUtils.layerKey(layerID,
+						key), image);
+			} else {
+				slice(meta, image);
+				if (!sharedImage) {
+					/*
+					 * never drawn, so it can be recycled at once
+					 */
+					image.recycle();
+				}
+			}
+			synchronized (failures) {
+				failures.remove(key);
+			}
+			if (notify) {
+				handler.sendEmptyMessage(WMSLoader.LOADSUCCESS);
+			}
+
+		} catch (IOException e) {
+			if (fetcher.isAborted(startGeneration)) {
+				Log.d(DT, "aborted: " + url);
+			} else {
+				Log.w(DT, "IO Exception while loading: " + url);
+				Log.w(DT, "IOException: " + e.getClass().getName());
+
+				recordFailure(key, notify);
+				if (notify) {
+					handler.sendEmptyMessage(WMSLoader.LOADFAIL);
+				}
+			}
+		} catch (NullPointerException ex) {
+			Log.w(DT, ex);
+			recordFailure(key, notify);
+			if (notify) {
+				handler.sendEmptyMessage(WMSLoader.LOADFAIL);
+			}
+		} finally {
+			if (shared != null) {
+				if (shared.isLeader()) {
+					shared.fail(fetcher.isAborted(startGeneration));
+				}
+				shared.release(sharedImageCached);
+			}
+			partsToLoad.completeLoading(key);
+			if (notify) {
+				handler.sendEmptyMessage(WMSLoader.STOP);
+			}
+		}
+	}
 
+	/**
+	 * Decode a part or the image of a MetaTile. Images of another size, e.g.
+	 * because the server ignored WIDTH and HEIGHT, are scaled to the
+	 * requested one.
+	 * 
+	 * @return the image or null if the data could not be decoded
+	 */
+	private Bitmap decode(byte[] data, MetaTile meta) {
+		final long start = SystemClock.uptimeMillis();
+		Bitmap image = meta == null ? wmsParts.getPool().decode(data, config)
+				: wmsParts.getPool().decode(data, config,
+						WMSUtils.WIDTH * meta.columns,
+						WMSUtils.HEIGHT * meta.rows);
+		WMSMetrics.DECODE.add(SystemClock.uptimeMillis() - start);
+		return image;
+	}
+
+	/**
+	 * Read a part from the TileContainer and cache it. Parts outside the
+	 * area of the container are remembered as missing, like the ones which
+	 * could not be read.
+	 */
+	private void readFromContainer(long key, PartRequest request,
+			boolean notify) {
+		byte[] data = container.getTile(request.zoom, request.column,
+				request.row);
+		Bitmap image = data == null ? null : decode(data, null);
+		if (image == null) {
+			missing.insertWithoutUpdate(key, Boolean.TRUE);
+			if (notify) {
+				handler.sendEmptyMessage(WMSLoader.LOADFAIL);
+			}
+			return;
+		}
+		wmsParts.insertWithoutUpdate(WMSUtils.layerKey(layerID, key), image);
+		if (notify) {
+			handler.sendEmptyMessage(WMSLoader.LOADSUCCESS);
+		}
+	}
+
+	/**
+	 * Cut the decoded image of a MetaTile into its parts and cache them.
+	 * Parts which are already cached are skipped.
+	 */
+	private void slice(MetaTile meta, Bitmap image) {
+		final TileBitmapPool bitmapPool = wmsParts.getPool();
+		int i = 0;
+		for (int row = 0; row < meta.rows; row++) {
+			for (int column = 0; column < meta.columns; column++, i++) {
+				long partKey = WMSUtils.layerKey(layerID, meta.parts[i]);
+				if (!wmsParts.contains(partKey)) {
+					wmsParts.insertWithoutUpdate(partKey, bitmapPool.cut(
+							image, column * WMSUtils.WIDTH, row
+									* WMSUtils.HEIGHT, config));
+				}
 			}
-			handler.sendEmptyMessage(WMSLoader.STOP);
 		}
+	}
 
+	/**
+	 * Failures of a part or MetaTile
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	private static class Failure {
+
+		private int count;
+
+		/**
+		 * uptime in milliseconds before which it is not requested again
+		 */
+		private long retryTime;
+	}
+
+	/**
+	 * Value of the loading Queue
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	private static class PartRequest {
+
+		/**
+		 * position of the part or the top-left part of the block in the
+		 * global tile matrix
+		 */
+		private final int zoom;
+		private final int column;
+		private final int row;
+		private final boolean diskOnly;
+		/**
+		 * the block to be sliced or null for a single part
+		 */
+		private final MetaTile meta;
+
+		private PartRequest(int zoom, int column, int row, boolean diskOnly,
+				MetaTile meta) {
+			this.zoom = zoom;
+			this.column = column;
+			this.row = row;
+			this.diskOnly = diskOnly;
+			this.meta = meta;
+		}
 	}
 }
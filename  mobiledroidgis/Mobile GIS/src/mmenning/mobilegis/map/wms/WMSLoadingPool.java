@@ -0,0 +1,352 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+/**
+ * Threads to load the parts of all WMSLoaders. The count of parts loaded at
+ * the same time is limited overall and per host, so neither the device nor a
+ * single server gets more requests than it can handle. WMSLoaders with queued
+ * parts are served round robin, prefetched parts are only loaded if no
+ * visible part is waiting for a free host.
+ * 
+ * The limit of a host adapts to the requests reported by the WMSLoaders: it
+ * grows by one after as many fast requests as the limit and is halved if a
+ * request fails or is slower than {@link WMSUtils#SLOWLatency}, so slow
+ * servers get fewer requests and fast ones more.
+ *
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ *
+ */
+public class WMSLoadingPool {
+
+	private static final String DT = "WMSLoadingPool";
+
+	/**
+	 * Seconds an idle Thread will be kept for reuse
+	 */
+	private static final int KEEP_ALIVE = 30;
+
+	private static WMSLoadingPool shared;
+
+	private final ThreadPoolExecutor executor;
+
+	private int maxThreads;
+
+	private int maxThreadsPerHost;
+
+	/**
+	 * currently running Workers
+	 */
+	private int workers;
+
+	/**
+	 * WMSLoaders which may have queued parts
+	 */
+	private final ArrayList<WMSLoader> loaders;
+
+	/**
+	 * index in loaders to start the search for the next part
+	 */
+	private int next;
+
+	/**
+	 * running parts and limit of each host
+	 */
+	private final HashMap<String, Host> hosts;
+
+	/**
+	 * weight of the latest request in the smoothed latency and error rate
+	 */
+	private static final float SMOOTHING = 0.2f;
+
+	/**
+	 * Get the WMSLoadingPool shared by all WMSLoaders. Its limits are
+	 * {@link WMSUtils#MAXTHREADS} and {@link WMSUtils#MAXTHREADSPerHost}
+	 * unless they are changed.
+	 *
+	 * @return the shared WMSLoadingPool
+	 */
+	public static synchronized WMSLoadingPool getShared() {
+		if (shared == null) {
+			shared = new WMSLoadingPool(WMSUtils.MAXTHREADS,
+					WMSUtils.MAXTHREADSPerHost);
+		}
+		return shared;
+	}
+
+	/**
+	 * Instantiate a new WMSLoadingPool
+	 *
+	 * @param maxThreads
+	 *            maximum count of parts loaded at the same time
+	 * @param maxThreadsPerHost
+	 *            maximum count of parts loaded from one host at the same
+	 *            time, the actual limit adapts to the host
+	 */
+	public WMSLoadingPool(int maxThreads, int maxThreadsPerHost) {
+		this.maxThreads = maxThreads;
+		this.maxThreadsPerHost = maxThreadsPerHost;
+		this.loaders = new ArrayList<WMSLoader>();
+		this.hosts = new HashMap<String, Host>();
+		this.executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+				KEEP_ALIVE, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					private int count;
+
+					public Thread newThread(Runnable r) {
+						return new Thread(r, DT + "-" + (++count));
+					}
+				});
+	}
+
+	/**
+	 * Set the maximum count of parts loaded at the same time.
+	 *
+	 * @param maxThreads
+	 */
+	public synchronized void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+		startWorkers();
+	}
+
+	/**
+	 * Set the maximum count of parts loaded from one host at the same time.
+	 *
+	 * @param maxThreadsPerHost
+	 */
+	public synchronized void setMaxThreadsPerHost(int maxThreadsPerHost) {
+		this.maxThreadsPerHost = maxThreadsPerHost;
+		for (Host h : hosts.values()) {
+			h.limit = Math.min(h.limit, maxThreadsPerHost);
+		}
+		startWorkers();
+	}
+
+	/**
+	 * Report a finished request to adapt the limit of its host. Requests
+	 * which were aborted must not be reported.
+	 *
+	 * @param host
+	 *            host of the request, see {@link WMSLoader#getHost()}
+	 * @param latency
+	 *            milliseconds the request took
+	 * @param failed
+	 *            true if the host could not be reached or returned an error
+	 */
+	synchronized void report(String host, long latency, boolean failed) {
+		Host h = host(host);
+		h.latency = h.latency < 0 ? latency : h.latency + SMOOTHING
+				* (latency - h.latency);
+		h.errorRate += SMOOTHING * ((failed ? 1 : 0) - h.errorRate);
+		if (failed || latency > WMSUtils.SLOWLatency) {
+			/*
+			 * the requests which were running already will report the same,
+			 * so decrease only once per round trip
+			 */
+			final long now = SystemClock.uptimeMillis();
+			if (now - h.lastDecrease > h.latency) {
+				h.limit = Math.max(1, h.limit / 2);
+				h.lastDecrease = now;
+			}
+		} else {
+			h.limit = Math.min(maxThreadsPerHost, h.limit + 1 / h.limit);
+			startWorkers();
+		}
+	}
+
+	/**
+	 * @param host
+	 * @return current count of parts which may be loaded from the host at the
+	 *         same time
+	 */
+	public synchronized int getLimit(String host) {
+		return host(host).allowed();
+	}
+
+	/**
+	 * @param host
+	 * @return smoothed milliseconds of the requests to the host, -1 if
+	 *         nothing was reported yet
+	 */
+	public synchronized float getLatency(String host) {
+		return host(host).latency;
+	}
+
+	/**
+	 * @param host
+	 * @return smoothed fraction of failed requests to the host
+	 */
+	public synchronized float getErrorRate(String host) {
+		return host(host).errorRate;
+	}
+
+	private Host host(String host) {
+		Host h = hosts.get(host);
+		if (h == null) {
+			h = new Host(Math.min(WMSUtils.INITIALThreadsPerHost,
+					maxThreadsPerHost));
+			hosts.put(host, h);
+		}
+		return h;
+	}
+
+	/**
+	 * Notify the pool that the WMSLoader has queued parts. They will be
+	 * loaded as soon as the limits allow it.
+	 *
+	 * @param loader
+	 */
+	public synchronized void schedule(WMSLoader loader) {
+		if (!loaders.contains(loader)) {
+			loaders.add(loader);
+		}
+		startWorkers();
+	}
+
+	/**
+	 * Start Workers until the limit is reached or there is no more work.
+	 */
+	private void startWorkers() {
+		int pending = 0;
+		for (WMSLoader l : loaders) {
+			Host h = host(l.getHost());
+			pending += Math.max(0, Math.min(l.queuedParts(), h.allowed()
+					- h.running));
+		}
+		while (workers < maxThreads && pending > 0) {
+			workers++;
+			pending--;
+			executor.execute(new Worker());
+		}
+	}
+
+	private boolean hasCapacity(String host) {
+		Host h = host(host);
+		return h.running < h.allowed();
+	}
+
+	/**
+	 * Choose the next WMSLoader to load a part for and reserve a place for its
+	 * host. If there is none, the calling Worker must terminate.
+	 *
+	 * @return the WMSLoader or null if there is nothing to do
+	 */
+	private synchronized WMSLoader nextLoader() {
+		if (workers <= maxThreads) {
+			/*
+			 * WMSLoaders without queued parts will be added again by
+			 * schedule()
+			 */
+			for (int i = loaders.size() - 1; i >= 0; i--) {
+				if (loaders.get(i).queuedParts() == 0) {
+					loaders.remove(i);
+				}
+			}
+			/*
+			 * first pass for parts which are visible, second pass for
+			 * prefetched ones
+			 */
+			final int size = loaders.size();
+			for (int pass = 0; pass < 2; pass++) {
+				for (int i = 0; i < size; i++) {
+					int index = (next + i) % size;
+					WMSLoader l = loaders.get(index);
+					String host = l.getHost();
+					if ((pass == 1 || l.hasForegroundParts())
+							&& hasCapacity(host)) {
+						host(host).running++;
+						next = index + 1;
+						return l;
+					}
+				}
+			}
+		}
+		workers--;
+		return null;
+	}
+
+	/**
+	 * Release the place of the host reserved by nextLoader().
+	 *
+	 * @param host
+	 */
+	private synchronized void complete(String host) {
+		host(host).running--;
+	}
+
+	/**
+	 * Running parts and adaptive limit of a host
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	private static class Host {
+
+		private int running;
+
+		/**
+		 * fractional, so it grows by about one after as many successful
+		 * requests as the limit
+		 */
+		private float limit;
+
+		private float latency = -1;
+
+		private float errorRate;
+
+		private long lastDecrease;
+
+		private Host(int limit) {
+			this.limit = limit;
+		}
+
+		private int allowed() {
+			return (int) limit;
+		}
+	}
+
+	/**
+	 * Loads parts as long as there are some which the limits allow. After
+	 * each part the next WMSLoader is chosen again, so parts which waited for
+	 * a host are picked up by the running Workers.
+	 *
+	 * @author Mathias Menninghaus
+	 *
+	 */
+	private class Worker implements Runnable {
+
+		public void run() {
+			WMSLoader loader;
+			while ((loader = nextLoader()) != null) {
+				try {
+					loader.loadNext();
+				} finally {
+					complete(loader.getHost());
+				}
+			}
+		}
+	}
+}
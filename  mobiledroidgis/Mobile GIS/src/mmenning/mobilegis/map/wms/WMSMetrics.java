@@ -0,0 +1,290 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.WeakHashMap;
+
+/**
+ * Process wide measurements of the loading of WMS parts, to find out whether
+ * the servers, the network, decoding or the caches slow down the map.
+ * 
+ * Durations are collected in {@link Histogram}s. Queue depths and cache
+ * counts are sampled from all registered WMSLoaders when a report is
+ * created, so measuring costs nothing while drawing.
+ * 
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ * 
+ * @see {@link WMSDiagnosticsActivity}
+ */
+public class WMSMetrics {
+
+	private static final String DT = "WMSMetrics";
+
+	/**
+	 * Milliseconds from sending a GetMap request until the response code is
+	 * received
+	 */
+	public static final Histogram TIME_TO_FIRST_BYTE = new Histogram();
+
+	/**
+	 * Milliseconds of whole GetMap requests including revalidation
+	 */
+	public static final Histogram DOWNLOAD = new Histogram();
+
+	/**
+	 * Milliseconds to decode a part or MetaTile
+	 */
+	public static final Histogram DECODE = new Histogram();
+
+	/**
+	 * Milliseconds a part or MetaTile waited in the loading Queue
+	 */
+	public static final Histogram QUEUE_WAIT = new Histogram();
+
+	private static long bytesTransferred;
+
+	private static int responses;
+
+	/**
+	 * WMSLoaders to sample, the garbage collector removes forgotten ones
+	 */
+	private static final WeakHashMap<WMSLoader, Boolean> loaders = new WeakHashMap<WMSLoader, Boolean>();
+
+	/**
+	 * Count a GetMap response.
+	 * 
+	 * @param bytes
+	 *            length of its body
+	 */
+	static synchronized void addTransferred(int bytes) {
+		bytesTransferred += bytes;
+		responses++;
+	}
+
+	/**
+	 * Sample the WMSLoader in the reports.
+	 * 
+	 * @param loader
+	 */
+	static void register(WMSLoader loader) {
+		synchronized (loaders) {
+			loaders.put(loader, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Stop sampling the WMSLoader, e.g. because it is not drawn anymore.
+	 * 
+	 * @param loader
+	 */
+	static void unregister(WMSLoader loader) {
+		synchronized (loaders) {
+			loaders.remove(loader);
+		}
+	}
+
+	/**
+	 * Create a readable report of all measurements.
+	 * 
+	 * @return the report, one measurement per line
+	 */
+	public static String report() {
+		ArrayList<WMSLoader> current;
+		synchronized (loaders) {
+			current = new ArrayList<WMSLoader>(loaders.keySet());
+		}
+		StringBuilder b = new StringBuilder();
+
+		b.append("Requests\n");
+		line(b, "time to first byte", TIME_TO_FIRST_BYTE);
+		line(b, "download", DOWNLOAD);
+		line(b, "decode", DECODE);
+		line(b, "queue wait", QUEUE_WAIT);
+		synchronized (WMSMetrics.class) {
+			b.append("  transferred: ").append(bytesTransferred / 1024).append(
+					" kB in ").append(responses).append(" responses\n");
+		}
+
+		b.append("Hosts\n");
+		WMSLoadingPool pool = WMSLoadingPool.getShared();
+		HashSet<String> hosts = new HashSet<String>();
+		for (WMSLoader l : current) {
+			String host = l.getHost();
+			if (l.getMapBaseURL() != null && hosts.add(host)) {
+				b.append("  ").append(host).append(": limit ").append(
+						pool.getLimit(host)).append(", latency ").append(
+						Math.round(pool.getLatency(host))).append(
+						" ms, errors ").append(
+						Math.round(pool.getErrorRate(host) * 100)).append(
+						"%\n");
+			}
+		}
+
+		b.append("Layers\n");
+		HashSet<BitmapCache> caches = new HashSet<BitmapCache>();
+		for (WMSLoader l : current) {
+			BitmapCache cache = l.getBitmapCache();
+			caches.add(cache);
+			final int hits = l.getHitCount();
+			final int misses = l.getMissCount();
+			b.append("  ").append(l.getName()).append(": queued ").append(
+					l.queuedParts()).append(" (").append(
+					l.foregroundParts()).append(" visible), hits ").append(
+					hits).append(", misses ").append(misses).append(
+					", hit ratio ").append(ratio(hits, misses)).append(
+					"%, failures ").append(l.getFailureCount()).append(
+					", evictions ").append(
+					cache.getEvictionCount(l.getLayerID())).append('\n');
+		}
+
+		b.append("Caches\n");
+		for (BitmapCache cache : caches) {
+			final int hits = cache.getHitCount();
+			final int misses = cache.getMissCount();
+			b.append("  ").append(cache.count()).append(" parts, ").append(
+					cache.size() / 1024).append(" kB, hits ").append(hits)
+					.append(", misses ").append(misses).append(", hit ratio ")
+					.append(ratio(hits, misses)).append("%, evictions ")
+					.append(cache.getEvictionCount()).append(
+							", reused Bitmaps ").append(
+							cache.getPool().getReuseCount()).append('\n');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Write the report to a file.
+	 * 
+	 * @param file
+	 *            will be overwritten
+	 * @throws IOException
+	 */
+	public static void dump(File file) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		try {
+			out.write(report());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void line(StringBuilder b, String name, Histogram h) {
+		b.append("  ").append(name).append(": ").append(h).append('\n');
+	}
+
+	private static int ratio(int hits, int misses) {
+		return hits + misses == 0 ? 0 : Math.round(100f * hits
+				/ (hits + misses));
+	}
+
+	/**
+	 * Distribution of durations in buckets of powers of two milliseconds.
+	 * Percentiles are estimated by the upper bound of their bucket, which
+	 * is exact enough to tell fast from slow and needs no storage per
+	 * value.
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	public static class Histogram {
+
+		/**
+		 * bucket 0 counts durations of 0 ms, bucket i durations less than
+		 * 2^i ms, the last one all longer durations
+		 */
+		private static final int BUCKETS = 20;
+
+		private final int[] buckets = new int[BUCKETS];
+
+		private int count;
+
+		private long sum;
+
+		private long max;
+
+		/**
+		 * Add a duration.
+		 * 
+		 * @param millis
+		 */
+		public synchronized void add(long millis) {
+			if (millis < 0) {
+				millis = 0;
+			}
+			int bucket = 64 - Long.numberOfLeadingZeros(millis);
+			buckets[Math.min(bucket, BUCKETS - 1)]++;
+			count++;
+			sum += millis;
+			max = Math.max(max, millis);
+		}
+
+		/**
+		 * @return count of added durations
+		 */
+		public synchronized int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return average duration in milliseconds, 0 if there is none
+		 */
+		public synchronized long getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		/**
+		 * @return longest duration in milliseconds
+		 */
+		public synchronized long getMax() {
+			return max;
+		}
+
+		/**
+		 * Estimate a percentile.
+		 * 
+		 * @param fraction
+		 *            e.g. 0.9 for the 90th percentile
+		 * @return milliseconds which the fraction of the durations does not
+		 *         exceed, at most the longest duration
+		 */
+		public synchronized long getPercentile(float fraction) {
+			final int rank = (int) Math.ceil(fraction * count);
+			int seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(max, (1L << i) - 1);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "n " + count + ", mean " + getMean() + " ms, p50 "
+					+ getPercentile(0.5f) + " ms, p90 " + getPercentile(0.9f)
+					+ " ms, p99 " + getPercentile(0.99f) + " ms, max " + max
+					+ " ms";
+		}
+	}
+}
@@ -16,14 +16,22 @@
 package mmenning.mobilegis.map.wms;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
+import mmenning.mobilegis.database.TileContainer;
+import mmenning.mobilegis.database.TileDiskCache;
 import mmenning.mobilegis.map.SleepableOverlay;
 import mmenning.mobilegis.util.ProgressAnimationManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.database.SQLException;
 import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapView;
@@ -43,18 +51,117 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 
 	private Paint semitransparent;
 
-	private ArrayList<WMSLoader<String>> loader;
+	/**
+	 * like semitransparent, but filters parts of other zoom levels when they
+	 * are scaled
+	 */
+	private Paint fallbackPaint;
+
+	/**
+	 * rectangles to draw parts of other zoom levels, only used by the drawing
+	 * thread
+	 */
+	private Rect fallbackSource;
+	private Rect fallbackTarget;
+
+	/**
+	 * cached parts of the next higher zoom level for the current key
+	 */
+	private Bitmap[] fallbackChildren = new Bitmap[4];
+
+	private ArrayList<WMSLoader> loader;
 
 	private static final GeoPoint ORIGIN = new GeoPoint(0, 0);
 
+	/**
+	 * screen pixels of the origin, only used by the drawing thread
+	 */
+	private Point originPixels = new Point();
+	private int[] dist = new int[2];
+
 	private ProgressAnimationManager loadManager;
 
 	private MapView map;
 
 	private int previousZoomLevel = -1;
 
+	/**
+	 * identifier of the first visible part at the last prefetch
+	 */
+	private int prefetchedIdentX;
+	private int prefetchedIdentY;
+	private int prefetchedZoomLevel = -1;
+
+	/**
+	 * smoothed scroll velocity of the origin in screen pixels per millisecond
+	 */
+	private float velocityX;
+	private float velocityY;
+
+	/**
+	 * screen pixels of the origin at the last tracked draw
+	 */
+	private int lastOriginX;
+	private int lastOriginY;
+	private long lastDrawTime = -1;
+
+	/**
+	 * weight of the latest measurement in the smoothed velocity
+	 */
+	private static final float VELOCITY_SMOOTHING = 0.5f;
+
+	/**
+	 * milliseconds without drawing after which the map is considered to have
+	 * stopped
+	 */
+	private static final int VELOCITY_TIMEOUT = 250;
+
 	private InvalidationHandler invalidationHandler;
 
+	private TileDiskCache diskCache;
+
+	private BitmapCache bitmapCache;
+
+	/**
+	 * definite identifiers of all getMapBaseURLs ever added, so that parts in
+	 * the bitmapCache survive rebuilding the loaders
+	 */
+	private HashMap<String, Integer> layerIDs;
+
+	/**
+	 * TileContainers of the current loaders, closed by clear() and onPause()
+	 */
+	private HashMap<String, TileContainer> containers;
+
+	/**
+	 * count of parts per side requested at once, 1 disables metatiling
+	 */
+	private int metaTileSize = WMSUtils.METATILESize;
+
+	/**
+	 * all layers of a part flattened into one Bitmap, drawn instead of the
+	 * single layers
+	 */
+	private BitmapCache compositeCache;
+
+	private boolean composition = WMSUtils.COMPOSITION;
+
+	/**
+	 * set by any thread if the composites do not match the layers anymore,
+	 * they are dropped by the drawing thread
+	 */
+	private volatile boolean compositesInvalid;
+
+	/**
+	 * Canvas to flatten the layers with, only used by the drawing thread
+	 */
+	private Canvas compositeCanvas;
+
+	/**
+	 * parts of the layers drawn for the current key
+	 */
+	private Bitmap[] layerParts = new Bitmap[0];
+
 	/**
 	 * Instanciate a new WMSOverlay.
 	 * 
@@ -64,11 +171,23 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 	 *            father of this overlay
 	 */
 	public WMSOverlay(ProgressAnimationManager loadManager, MapView map) {
-		this.loader = new ArrayList<WMSLoader<String>>();
+		this.loader = new ArrayList<WMSLoader>();
 		this.loadManager = loadManager;
 		this.map = map;
 		this.semitransparent = new Paint();
+		this.fallbackPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		this.fallbackSource = new Rect();
+		this.fallbackTarget = new Rect();
 		this.invalidationHandler = new InvalidationHandler();
+		this.diskCache = TileDiskCache.getShared(map.getContext(),
+				WMSUtils.MAXDiskCacheSize);
+		HttpFetcher.setContext(map.getContext());
+		this.bitmapCache = new BitmapCache(WMSUtils.BitmapCacheMemoryFraction);
+		this.layerIDs = new HashMap<String, Integer>();
+		this.containers = new HashMap<String, TileContainer>();
+		this.compositeCache = new BitmapCache(
+				WMSUtils.CompositeCacheMemoryFraction);
+		this.compositeCanvas = new Canvas();
 	}
 
 	/**
@@ -77,34 +196,180 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 	 * 
 	 * @param getMapBaseURL
 	 *            {@link WMSUtils.getMapBaseURL}
+	 * @param opaque
+	 *            true if the WMS is an opaque base layer, its parts will be
+	 *            decoded without alpha channel
+	 */
+	public void addLoader(String getMapBaseURL, boolean opaque) {
+		/*
+		 * opaque parts are decoded differently, so they must not be mixed up
+		 * with the transparent ones
+		 */
+		String layer = opaque ? "opaque#" + getMapBaseURL : getMapBaseURL;
+		this.loader.add(new WMSLoader(getMapBaseURL,
+				invalidationHandler, layerID(layer), bitmapCache, diskCache,
+				opaque));
+		this.compositesInvalid = true;
+	}
+
+	/**
+	 * Add a TileContainer to read parts from, e.g. an offline base map. Like
+	 * WMS, the first added one will be displayed on the bottom.
+	 * 
+	 * @param path
+	 *            absolute path of the MBTiles or GeoPackage file
+	 * @param opaque
+	 *            true if the container is an opaque base layer
+	 * @throws SQLException
+	 *             if the file is no supported TileContainer
+	 */
+	public void addContainer(String path, boolean opaque) throws SQLException {
+		TileContainer container;
+		synchronized (containers) {
+			container = containers.get(path);
+			if (container == null) {
+				container = new TileContainer(path);
+				containers.put(path, container);
+			}
+		}
+		String layer = (opaque ? "opaque#" : "") + "container#" + path;
+		this.loader.add(new WMSLoader(container, invalidationHandler,
+				layerID(layer), bitmapCache, opaque));
+		this.compositesInvalid = true;
+	}
+
+	private int layerID(String layer) {
+		synchronized (layerIDs) {
+			Integer layerID = layerIDs.get(layer);
+			if (layerID == null) {
+				if (layerIDs.size() >= WMSUtils.MAXLayers) {
+					/*
+					 * forget the layers which are not displayed anymore,
+					 * their identifiers will be reused
+					 */
+					HashSet<Integer> used = new HashSet<Integer>();
+					for (WMSLoader l : loader) {
+						used.add(l.getLayerID());
+					}
+					layerIDs.values().retainAll(used);
+					bitmapCache.clear();
+				}
+				layerID = 0;
+				while (layerIDs.containsValue(layerID)) {
+					layerID++;
+				}
+				layerIDs.put(layer, layerID);
+			}
+			return layerID;
+		}
+	}
+
+	/**
+	 * Set the count of parts per side which are requested with a single
+	 * GetMap request. Larger blocks need fewer requests but more memory while
+	 * they are sliced.
+	 * 
+	 * @param metaTileSize
+	 *            parts per side, 1 requests every part on its own, at most
+	 *            {@link WMSUtils#MAXMetaTileSize}
+	 */
+	public void setMetaTileSize(int metaTileSize) {
+		this.metaTileSize = Math.max(1, Math.min(WMSUtils.MAXMetaTileSize,
+				metaTileSize));
+		stopLoading();
+	}
+
+	/**
+	 * @return count of parts per side which are requested at once
 	 */
-	public void addLoader(String getMapBaseURL) {
-		this.loader.add(new WMSLoader<String>(getMapBaseURL,
-				invalidationHandler));
+	public int getMetaTileSize() {
+		return metaTileSize;
+	}
+
+	/**
+	 * Get the baseURLs of all loaders, e.g. to store their parts for offline
+	 * use with a {@link WMSSeeder}.
+	 * 
+	 * @return the getMapBaseURLs, the lowest WMS first, TileContainers are
+	 *         left out
+	 */
+	public String[] getMapBaseURLs() {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (WMSLoader l : loader) {
+			if (l.getMapBaseURL() != null) {
+				ret.add(l.getMapBaseURL());
+			}
+		}
+		return ret.toArray(new String[ret.size()]);
 	}
 
 	/**
 	 * Remove all previously added baseURLS
 	 */
 	public void clear() {
-		for (WMSLoader<String> l : loader) {
+		for (WMSLoader l : loader) {
 			l.stopLoading();
+			WMSMetrics.unregister(l);
 		}
 		loader.clear();
+		synchronized (containers) {
+			for (TileContainer c : containers.values()) {
+				c.close();
+			}
+			containers.clear();
+		}
+		compositesInvalid = true;
+	}
+
+	/**
+	 * Enable or disable flattening all layers of a part into one Bitmap once
+	 * all of them are loaded. Drawing a flattened part costs the same for any
+	 * count of layers, but the flattened parts need memory of their own.
+	 * 
+	 * @param composition
+	 *            true to draw flattened parts
+	 */
+	public void setComposition(boolean composition) {
+		this.composition = composition;
+		this.compositesInvalid = true;
 	}
 
 	/**
 	 * Draw Parts using the currently displayed Position and all getMapBaseUrls.
+	 * Drawing cached parts allocates nothing, so scrolling the map does not
+	 * keep the garbage collector busy.
+	 * 
+	 * The parts are drawn in both passes, but only the second one tracks the
+	 * velocity, loads, prefetches and counts hits, as if there was one draw
+	 * per frame.
 	 */
 	@Override
 	public void draw(Canvas canvas, MapView mapView, boolean shadow) {
 
+		/*
+		 * parts removed from the cache since the last frame are not drawn
+		 * anymore
+		 */
+		bitmapCache.getPool().onFrame();
+		compositeCache.getPool().onFrame();
+
 		if (sleeps)
 			return;
 
+		if (compositesInvalid) {
+			compositesInvalid = false;
+			compositeCache.clear();
+		}
+		final int layers = loader.size();
+		final boolean flatten = composition && layers > 1;
+		if (layerParts.length < layers) {
+			layerParts = new Bitmap[layers];
+		}
+
 		if (this.previousZoomLevel != mapView.getZoomLevel()) {
 			this.stopLoading();
 			this.previousZoomLevel = mapView.getZoomLevel();
+			this.lastDrawTime = -1;
 		}
 
 		final Projection p = mapView.getProjection();
@@ -112,8 +377,25 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 		/*
 		 * calculate distance to last center
 		 */
-		final int[] dist = WMSUtils.pixelDistance(ORIGIN, p.fromPixels(mapView
-				.getLeft(), mapView.getTop()), p);
+		p.toPixels(ORIGIN, originPixels);
+		dist[WMSUtils.X] = originPixels.x - mapView.getLeft();
+		dist[WMSUtils.Y] = originPixels.y - mapView.getTop();
+
+		if (!shadow) {
+			trackVelocity(dist);
+		}
+
+		/*
+		 * where the center of the viewport is expected to be after
+		 * PREDICTIONHorizon, the content moves with the origin and the
+		 * viewport against it
+		 */
+		final float shiftX = clamp(-velocityX * WMSUtils.PREDICTIONHorizon,
+				mapView.getWidth());
+		final float shiftY = clamp(-velocityY * WMSUtils.PREDICTIONHorizon,
+				mapView.getHeight());
+		final float centerX = mapView.getWidth() / 2f + shiftX;
+		final float centerY = mapView.getHeight() / 2f + shiftY;
 
 		/*
 		 * so much parts we will need to load
@@ -143,7 +425,9 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 
 		Bitmap map;
 
-		String key;
+		long key;
+
+		final int zoom = mapView.getZoomLevel();
 
 //		 int k = 0;
 
@@ -175,19 +459,63 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 				//END DEBUG
 				
 				/*
-				 * key to identify the part for a wmsLoader definite
+				 * key to identify the part for a wmsLoader definite, the
+				 * same on every device
 				 */
-				key = mapView.getZoomLevel() + "," + identX + "," + identY;
+				final int column = WMSUtils.tileColumn(zoom, identX);
+				final int row = WMSUtils.tileRow(zoom, identY);
+				key = WMSUtils.partKey(zoom, column, row);
 
 				/*
 				 * Load part from every WMSLoader.
 				 */
 
-				for (WMSLoader<String> l : loader) {
-					map = l.loadMap(key, x, y, p);
+				/*
+				 * parts at the leading edge are loaded first
+				 */
+				float priority = distance(x + WMSUtils.HALFWIDTH, y
+						+ WMSUtils.HALFHEIGHT, centerX, centerY);
+
+				if (flatten) {
+					map = compositeCache.getWithUpdate(key);
+					if (map != null) {
+						/*
+						 * already contains the transparency
+						 */
+						canvas.drawBitmap(map, x, y, null);
+						continue;
+					}
+				}
+
+				MetaTile meta = null;
+				boolean complete = true;
+
+				for (int i = 0; i < layers; i++) {
+					WMSLoader l = loader.get(i);
+					if (shadow) {
+						map = l.getMap(key);
+					} else if (metaTileSize > 1) {
+						map = l.getVisibleMap(key);
+						if (map == null) {
+							if (meta == null) {
+								meta = metaTile(zoom, column, row);
+							}
+							l.loadMetaTile(meta, priority);
+						}
+					} else {
+						map = l.loadMap(key, zoom, column, row, priority);
+					}
 					if (map != null) {
 						canvas.drawBitmap(map, x, y, semitransparent);
+					} else {
+						complete = false;
+						drawFallback(canvas, l, zoom, column, row, x, y);
 					}
+					layerParts[i] = map;
+				}
+
+				if (flatten && complete) {
+					flatten(key, layers);
 				}
 
 				
@@ -209,6 +537,44 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 
 			}
 		}
+		/*
+		 * prefetch only if the visible parts changed, the keys queued before
+		 * are obsolete then
+		 */
+		if (!shadow
+				&& (zoom != prefetchedZoomLevel
+						|| startIdentX != prefetchedIdentX
+						|| startIdentY != prefetchedIdentY)) {
+			prefetchedZoomLevel = zoom;
+			prefetchedIdentX = startIdentX;
+			prefetchedIdentY = startIdentY;
+			for (WMSLoader l : loader) {
+				l.clearPrefetch();
+			}
+			prefetchRing(zoom, startX, startY, startIdentX, startIdentY,
+					partsX, partsY, centerX, centerY);
+			prefetchTrajectory(zoom, dist, shiftX, shiftY, mapView,
+					centerX, centerY);
+			if (WMSUtils.PREFETCHZoomLevels) {
+				/*
+				 * after all parts of the current zoom level
+				 */
+				final float penalty = mapView.getWidth() + mapView.getHeight();
+				if (zoom < mapView.getMaxZoomLevel()) {
+					prefetchArea(zoom + 1, dist, 0, 0, mapView.getWidth(),
+							mapView.getHeight(), WMSUtils.WIDTH / 2,
+							WMSUtils.HEIGHT / 2, true, centerX, centerY,
+							penalty);
+				}
+				if (zoom > 1) {
+					prefetchArea(zoom - 1, dist, 0, 0, mapView.getWidth(),
+							mapView.getHeight(), WMSUtils.WIDTH * 2,
+							WMSUtils.HEIGHT * 2, true, centerX, centerY,
+							penalty);
+				}
+			}
+		}
+
 		/*
 		 * DEBUG information
 		 */
@@ -222,10 +588,310 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 	}
 
 	/**
-	 * Should be called if the Overlay is no longer visible.
+	 * Draw the parts of all layers for the key into one Bitmap and cache it.
+	 * Blending every layer with the transparency in order gives the same
+	 * result as drawing them one by one onto the map.
+	 * 
+	 * @param key
+	 *            identifier of the part
+	 * @param layers
+	 *            count of valid entries in layerParts
+	 */
+	private void flatten(long key, int layers) {
+		Bitmap composite = compositeCache.getPool().create(
+				Bitmap.Config.ARGB_8888);
+		compositeCanvas.setBitmap(composite);
+		for (int i = 0; i < layers; i++) {
+			compositeCanvas.drawBitmap(layerParts[i], 0, 0, semitransparent);
+			layerParts[i] = null;
+		}
+		compositeCache.insertWithoutUpdate(key, composite);
+	}
+
+	/**
+	 * Fill a part which is not loaded yet with the cached parts of other zoom
+	 * levels until it arrives. The four parts of the next higher zoom level
+	 * are preferred, else the part of a lower zoom level is scaled up, else
+	 * the available higher parts are drawn. Only one of them is drawn, so
+	 * they do not blend with each other if the layer is semitransparent.
+	 * 
+	 * @param l
+	 *            the layer the part is missing of
+	 * @param x
+	 *            left border of the part on the screen
+	 * @param y
+	 *            top border of the part on the screen
+	 */
+	private void drawFallback(Canvas canvas, WMSLoader l, int zoom,
+			int column, int row, int x, int y) {
+		int children = 0;
+		for (int i = 0; i < 4; i++) {
+			fallbackChildren[i] = l.getMap(WMSUtils.partKey(zoom + 1, column
+					* 2 + (i & 1), row * 2 + (i >> 1)));
+			if (fallbackChildren[i] != null) {
+				children++;
+			}
+		}
+
+		if (children < 4) {
+			for (int d = 1; d <= WMSUtils.FALLBACKLevels && zoom - d >= 1; d++) {
+				final int scale = 1 << d;
+				final int parentColumn = WMSUtils.floorDiv(column, scale);
+				final int parentRow = WMSUtils.floorDiv(row, scale);
+				Bitmap parent = l.getMap(WMSUtils.partKey(zoom - d,
+						parentColumn, parentRow));
+				if (parent != null) {
+					final int left = (column - parentColumn * scale)
+							* WMSUtils.WIDTH / scale;
+					final int top = (row - parentRow * scale) * WMSUtils.HEIGHT
+							/ scale;
+					fallbackSource.set(left, top, left + WMSUtils.WIDTH / scale,
+							top + WMSUtils.HEIGHT / scale);
+					fallbackTarget.set(x, y, x + WMSUtils.WIDTH, y
+							+ WMSUtils.HEIGHT);
+					canvas.drawBitmap(parent, fallbackSource, fallbackTarget,
+							fallbackPaint);
+					children = 0;
+					break;
+				}
+			}
+		}
+
+		for (int i = 0; i < 4; i++) {
+			if (children > 0 && fallbackChildren[i] != null) {
+				final int left = x + (i & 1) * WMSUtils.HALFWIDTH;
+				final int top = y + (i >> 1) * WMSUtils.HALFHEIGHT;
+				fallbackTarget.set(left, top, left + WMSUtils.HALFWIDTH, top
+						+ WMSUtils.HALFHEIGHT);
+				canvas.drawBitmap(fallbackChildren[i], null, fallbackTarget,
+						fallbackPaint);
+			}
+			fallbackChildren[i] = null;
+		}
+	}
+
+	/**
+	 * Measure the scroll velocity of the map by the movement of the origin
+	 * since the last draw.
+	 * 
+	 * @param dist
+	 *            screen pixels of the origin
+	 */
+	private void trackVelocity(int[] dist) {
+		final long now = SystemClock.uptimeMillis();
+		final long elapsed = now - lastDrawTime;
+		if (lastDrawTime < 0 || elapsed > VELOCITY_TIMEOUT) {
+			velocityX = 0;
+			velocityY = 0;
+		} else if (elapsed > 0) {
+			final float measuredX = (dist[WMSUtils.X] - lastOriginX)
+					/ (float) elapsed;
+			final float measuredY = (dist[WMSUtils.Y] - lastOriginY)
+					/ (float) elapsed;
+			velocityX += VELOCITY_SMOOTHING * (measuredX - velocityX);
+			velocityY += VELOCITY_SMOOTHING * (measuredY - velocityY);
+		}
+		lastOriginX = dist[WMSUtils.X];
+		lastOriginY = dist[WMSUtils.Y];
+		lastDrawTime = now;
+	}
+
+	private static float clamp(float value, float limit) {
+		return Math.max(-limit, Math.min(limit, value));
+	}
+
+	private static float distance(float x1, float y1, float x2, float y2) {
+		final float dx = x1 - x2;
+		final float dy = y1 - y2;
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Prefetch the parts covering the viewport along its predicted way into
+	 * memory. The trajectory is sampled once per part size, so no part on
+	 * the way is skipped.
+	 * 
+	 * @param shiftX
+	 *            predicted movement of the viewport in screen pixels
+	 * @param shiftY
+	 *            predicted movement of the viewport in screen pixels
+	 */
+	private void prefetchTrajectory(int zoom, int[] dist, float shiftX,
+			float shiftY, MapView mapView, float centerX, float centerY) {
+		final float length = Math.max(Math.abs(shiftX) / WMSUtils.WIDTH, Math
+				.abs(shiftY)
+				/ WMSUtils.HEIGHT);
+		final int steps = (int) Math.ceil(length);
+		for (int i = 1; i <= steps; i++) {
+			final int left = (int) (shiftX * i / steps);
+			final int top = (int) (shiftY * i / steps);
+			prefetchArea(zoom, dist, left, top, left + mapView.getWidth(), top
+					+ mapView.getHeight(), WMSUtils.WIDTH, WMSUtils.HEIGHT,
+					false, centerX, centerY, 0);
+		}
+	}
+
+	/**
+	 * Build the MetaTile containing a part. MetaTiles are aligned to the
+	 * global tile matrix, so every part belongs to exactly one on every
+	 * device.
+	 * 
+	 * @param zoom
+	 *            zoom level of the part
+	 * @param column
+	 *            column of the part
+	 * @param row
+	 *            row of the part
+	 * @return the MetaTile
+	 */
+	private MetaTile metaTile(int zoom, int column, int row) {
+		final int n = metaTileSize;
+		final int firstColumn = WMSUtils.floorDiv(column, n) * n;
+		final int firstRow = WMSUtils.floorDiv(row, n) * n;
+		return new MetaTile(WMSUtils.metaTileKey(zoom, n, firstColumn,
+				firstRow), zoom, firstColumn, firstRow, n, n);
+	}
+
+	/**
+	 * Prefetch the rings of parts around the visible parts into memory, the
+	 * nearest ring first.
+	 */
+	private void prefetchRing(int zoom, int startX, int startY,
+			int startIdentX, int startIdentY, int partsX, int partsY,
+			float centerX, float centerY) {
+		if (metaTileSize > 1) {
+			/*
+			 * whole blocks around the visible area, the visible ones are
+			 * skipped by the loaders
+			 */
+			final int r = WMSUtils.PREFETCHRing;
+			int[] dist = { startX - startIdentX * WMSUtils.WIDTH,
+					startY + startIdentY * WMSUtils.HEIGHT };
+			prefetchArea(zoom, dist, startX - r * WMSUtils.WIDTH, startY - r
+					* WMSUtils.HEIGHT, startX + (partsX + 1 + r)
+					* WMSUtils.WIDTH, startY + (partsY + 1 + r)
+					* WMSUtils.HEIGHT, WMSUtils.WIDTH, WMSUtils.HEIGHT,
+					false, centerX, centerY, 0);
+			return;
+		}
+		for (int r = 1; r <= WMSUtils.PREFETCHRing; r++) {
+			for (int i = -r; i <= partsY + r; i++) {
+				for (int j = -r; j <= partsX + r; j++) {
+					if (i != -r && i != partsY + r && j != -r
+							&& j != partsX + r) {
+						/*
+						 * inner part, already requested or in a former ring
+						 */
+						continue;
+					}
+					final int column = WMSUtils.tileColumn(zoom, startIdentX
+							+ j);
+					final int row = WMSUtils.tileRow(zoom, startIdentY - i);
+					long key = WMSUtils.partKey(zoom, column, row);
+					int left = startX + j * WMSUtils.WIDTH;
+					int top = startY + i * WMSUtils.HEIGHT;
+					float priority = distance(left + WMSUtils.HALFWIDTH, top
+							+ WMSUtils.HALFHEIGHT, centerX, centerY);
+					for (WMSLoader l : loader) {
+						l.prefetchMap(key, zoom, column, row, false, priority);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prefetch all parts of a zoom level covering an area of the screen.
+	 * Parts of other zoom levels should only be stored on the SDCard, so they
+	 * do not occupy the memory of the visible ones.
+	 * 
+	 * @param zoom
+	 *            zoom level of the parts
+	 * @param dist
+	 *            screen pixels of the origin
+	 * @param areaLeft
+	 *            area in screen pixels, right and bottom exclusive
+	 * @param width
+	 *            width of a part of the zoom level in screen pixels of the
+	 *            current zoom level
+	 * @param height
+	 *            height of a part of the zoom level in screen pixels of the
+	 *            current zoom level
+	 * @param diskOnly
+	 *            true if the parts should not be decoded
+	 * @param penalty
+	 *            added to the distance of each part to the predicted center
+	 */
+	private void prefetchArea(int zoom, int[] dist, int areaLeft,
+			int areaTop, int areaRight, int areaBottom, int width, int height,
+			boolean diskOnly, float centerX, float centerY,
+			float penalty) {
+		final int ox = dist[WMSUtils.X];
+		final int oy = dist[WMSUtils.Y];
+		/*
+		 * a part (identX, identY) has its top-left corner at
+		 * (ox + identX * width, oy - identY * height)
+		 */
+		final int firstX = WMSUtils.floorDiv(areaLeft - ox, width);
+		final int lastX = WMSUtils.floorDiv(areaRight - 1 - ox, width);
+		final int firstY = -WMSUtils.floorDiv(areaTop - oy, height);
+		final int lastY = -WMSUtils.floorDiv(areaBottom - 1 - oy, height);
+		/*
+		 * the same area in the global tile matrix, rows grow southwards
+		 */
+		final int half = 1 << (zoom - 1);
+		final int firstColumn = WMSUtils.tileColumn(zoom, firstX);
+		final int lastColumn = WMSUtils.tileColumn(zoom, lastX);
+		final int firstRow = WMSUtils.tileRow(zoom, firstY);
+		final int lastRow = WMSUtils.tileRow(zoom, lastY);
+		if (metaTileSize > 1) {
+			final int n = metaTileSize;
+			for (int blockRow = WMSUtils.floorDiv(firstRow, n); blockRow <= WMSUtils
+					.floorDiv(lastRow, n); blockRow++) {
+				for (int blockColumn = WMSUtils.floorDiv(firstColumn, n); blockColumn <= WMSUtils
+						.floorDiv(lastColumn, n); blockColumn++) {
+					MetaTile meta = metaTile(zoom, blockColumn * n,
+							blockRow * n);
+					int left = ox + (meta.column - half) * width;
+					int top = oy + (meta.row - half) * height;
+					float priority = penalty
+							+ distance(left + width * n / 2, top + height * n
+									/ 2, centerX, centerY);
+					for (WMSLoader l : loader) {
+						l.prefetchMetaTile(meta, diskOnly, priority);
+					}
+				}
+			}
+			return;
+		}
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				long key = WMSUtils.partKey(zoom, column, row);
+				int left = ox + (column - half) * width;
+				int top = oy + (row - half) * height;
+				float priority = penalty
+						+ distance(left + width / 2, top + height / 2,
+								centerX, centerY);
+				for (WMSLoader l : loader) {
+					l.prefetchMap(key, zoom, column, row, diskOnly, priority);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Should be called if the Overlay is no longer visible. Also writes the
+	 * index of the TileDiskCache and closes the TileContainers, they are
+	 * opened again when they are read.
 	 */
 	public void onPause() {
 		stopLoading();
+		diskCache.flush();
+		synchronized (containers) {
+			for (TileContainer c : containers.values()) {
+				c.close();
+			}
+		}
 	}
 
 	/**
@@ -235,13 +901,18 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 	 *            alpha value [0..255]
 	 */
 	public void setTransparency(int transparency) {
-		semitransparent.setAlpha(transparency);
+		if (semitransparent.getAlpha() != transparency) {
+			semitransparent.setAlpha(transparency);
+			fallbackPaint.setAlpha(transparency);
+			compositesInvalid = true;
+		}
 	}
 
 	private void stopLoading() {
-		for (WMSLoader<String> l : loader) {
+		for (WMSLoader l : loader) {
 			l.stopLoading();
 		}
+		prefetchedZoomLevel = -1;
 	}
 
 	/**
@@ -265,6 +936,12 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 			case WMSLoader.LOADFAIL:
 				// loadManager.stop();
 				break;
+			case WMSLoader.RETRY:
+				/*
+				 * draw requests the failed part again
+				 */
+				WMSOverlay.this.map.invalidate();
+				break;
 			case WMSLoader.STOP:
 				loadManager.stop();
 
@@ -0,0 +1,643 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashSet;
+
+import mmenning.mobilegis.database.TileDiskCache;
+import mmenning.mobilegis.database.TileDiskCache.CacheHeaders;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * Downloads all parts of a bounding box and a range of zoom levels into the
+ * shared {@link TileDiskCache}, so they can be displayed without network
+ * access. The parts are enumerated with the same keys as {@link WMSOverlay}
+ * uses, so they are found by the WMSLoaders later.
+ * 
+ * Only {@link WMSUtils#SEEDThreads} parts are loaded at the same time. Parts
+ * which are stored and not expired are skipped. All stored parts of the job
+ * are pinned in the TileDiskCache, so browsing other areas does not delete
+ * them. Once they expire, they are still used while there is no network
+ * connection. The job and its progress are
+ * saved, so an interrupted job can be continued with {@link #restore(Context,
+ * TileDiskCache, Handler)}. Parts which could not be loaded are counted and
+ * stay behind the saved progress, so a job with failed parts stays saved and
+ * continuing it loads them again.
+ * 
+ * The Handler will be notified with PROGRESS (arg1 done parts, arg2 all
+ * parts) and finally with FINISHED (arg1 failed parts) or CANCELLED. A
+ * started job outlives the Activity which started it, it is available by
+ * {@link #getRunning()} until it terminates, so a new Activity can attach
+ * its Handler with {@link #setHandler(Handler)}.
+ * 
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ * 
+ */
+public class WMSSeeder {
+
+	private static final String DT = "WMSSeeder";
+
+	/**
+	 * Progress of the job, arg1 is the count of done parts, arg2 of all
+	 */
+	public static final int PROGRESS = 0;
+	/**
+	 * If all parts were processed, arg1 is the count of parts which could not
+	 * be loaded
+	 */
+	public static final int FINISHED = 1;
+	/**
+	 * If the job was cancelled, it may be restored
+	 */
+	public static final int CANCELLED = 2;
+
+	/**
+	 * Assumed size of a stored part in bytes if nothing is stored yet
+	 */
+	private static final int AVERAGE_PART_SIZE = 16 * 1024;
+
+	/**
+	 * Minimum milliseconds between two PROGRESS messages
+	 */
+	private static final int PROGRESS_INTERVAL = 250;
+
+	/**
+	 * Count of processed parts after which the progress is saved
+	 */
+	private static final int SAVE_INTERVAL = 64;
+
+	private static final String PREFERENCES = "wms_seeder";
+	private static final String URLS = "urls";
+	private static final String MIN_LAT = "minLat";
+	private static final String MIN_LON = "minLon";
+	private static final String MAX_LAT = "maxLat";
+	private static final String MAX_LON = "maxLon";
+	private static final String MIN_ZOOM = "minZoom";
+	private static final String MAX_ZOOM = "maxZoom";
+	private static final String META_TILE_SIZE = "metaTileSize";
+	private static final String CURSOR = "cursor";
+
+	/**
+	 * the started job which has not terminated yet, or null
+	 */
+	private static WMSSeeder running;
+
+	private final Context context;
+	private final TileDiskCache diskCache;
+	private volatile Handler handler;
+
+	private final String[] getMapBaseURLs;
+	private final int minLatitudeE6;
+	private final int minLongitudeE6;
+	private final int maxLatitudeE6;
+	private final int maxLongitudeE6;
+	private final int minZoom;
+	private final int maxZoom;
+	private final int metaTileSize;
+
+	/**
+	 * per zoom level: column and row of the top-left part or MetaTile and
+	 * the count of them in both directions
+	 */
+	private final int[] firstColumn;
+	private final int[] firstRow;
+	private final int[] columns;
+	private final int[] rows;
+
+	/**
+	 * count of requests per layer
+	 */
+	private final long total;
+
+	private final HttpFetcher fetcher;
+
+	/**
+	 * index of the next request to be processed
+	 */
+	private long next;
+
+	private long done;
+
+	/**
+	 * count of parts which could not be loaded
+	 */
+	private long failed;
+
+	/**
+	 * lowest index of a request with a part which could not be loaded
+	 */
+	private long firstFailed = Long.MAX_VALUE;
+
+	/**
+	 * indices of the requests currently processed
+	 */
+	private final HashSet<Long> runningRequests;
+
+	private int runningThreads;
+
+	private boolean cancelled;
+
+	private long lastProgress;
+
+	/**
+	 * Instantiate a new WMSSeeder for a bounding box.
+	 * 
+	 * @param context
+	 *            Context to save the job in
+	 * @param diskCache
+	 *            the TileDiskCache used by the WMSOverlay
+	 * @param handler
+	 *            Handler to be notified about the progress
+	 * @param getMapBaseURLs
+	 *            layers to load
+	 * @param lowerLeft
+	 *            corner of the bounding box
+	 * @param upperRight
+	 *            corner of the bounding box
+	 * @param minZoom
+	 *            lowest zoom level to load
+	 * @param maxZoom
+	 *            highest zoom level to load
+	 * @param metaTileSize
+	 *            {@link WMSOverlay#getMetaTileSize()}, the parts must be
+	 *            stored like the WMSOverlay requests them
+	 */
+	public WMSSeeder(Context context, TileDiskCache diskCache,
+			Handler handler, String[] getMapBaseURLs, GeoPoint lowerLeft,
+			GeoPoint upperRight, int minZoom, int maxZoom, int metaTileSize) {
+		this(context, diskCache, handler, getMapBaseURLs, lowerLeft
+				.getLatitudeE6(), lowerLeft.getLongitudeE6(), upperRight
+				.getLatitudeE6(), upperRight.getLongitudeE6(), minZoom,
+				maxZoom, metaTileSize);
+	}
+
+	private WMSSeeder(Context context, TileDiskCache diskCache,
+			Handler handler, String[] getMapBaseURLs, int minLatitudeE6,
+			int minLongitudeE6, int maxLatitudeE6, int maxLongitudeE6,
+			int minZoom, int maxZoom, int metaTileSize) {
+		/*
+		 * the job may outlive the Activity
+		 */
+		this.context = context.getApplicationContext();
+		this.diskCache = diskCache;
+		this.handler = handler;
+		this.getMapBaseURLs = getMapBaseURLs;
+		this.minLatitudeE6 = minLatitudeE6;
+		this.minLongitudeE6 = minLongitudeE6;
+		this.maxLatitudeE6 = maxLatitudeE6;
+		this.maxLongitudeE6 = maxLongitudeE6;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.metaTileSize = Math.max(1, metaTileSize);
+		this.fetcher = new HttpFetcher();
+		this.runningRequests = new HashSet<Long>();
+
+		final int levels = Math.max(0, maxZoom - minZoom + 1);
+		this.firstColumn = new int[levels];
+		this.firstRow = new int[levels];
+		this.columns = new int[levels];
+		this.rows = new int[levels];
+
+		long count = 0;
+		final int n = this.metaTileSize;
+		for (int i = 0; i < levels; i++) {
+			final int zoom = minZoom + i;
+			/*
+			 * columns and rows of the global tile matrix, pixels are counted
+			 * from GeoPoint(0, 0) which is the center of the matrix
+			 */
+			final int last = (1 << zoom) - 1;
+			int left = tile(WMSUtils.longitudeToPixels(minLongitudeE6, zoom),
+					WMSUtils.WIDTH, zoom);
+			int right = tile(WMSUtils.longitudeToPixels(maxLongitudeE6, zoom),
+					WMSUtils.WIDTH, zoom);
+			int top = tile(WMSUtils.latitudeToPixels(maxLatitudeE6, zoom),
+					WMSUtils.HEIGHT, zoom);
+			int bottom = tile(WMSUtils.latitudeToPixels(minLatitudeE6, zoom),
+					WMSUtils.HEIGHT, zoom);
+			left = Math.max(0, left);
+			top = Math.max(0, top);
+			right = Math.min(last, right);
+			bottom = Math.min(last, bottom);
+			/*
+			 * MetaTiles are aligned like in WMSOverlay
+			 */
+			firstColumn[i] = WMSUtils.floorDiv(left, n) * n;
+			firstRow[i] = WMSUtils.floorDiv(top, n) * n;
+			columns[i] = Math.max(0, WMSUtils.floorDiv(right, n)
+					- WMSUtils.floorDiv(left, n) + 1);
+			rows[i] = Math.max(0, WMSUtils.floorDiv(bottom, n)
+					- WMSUtils.floorDiv(top, n) + 1);
+			count += (long) columns[i] * rows[i];
+		}
+		this.total = count;
+	}
+
+	/**
+	 * Restore the job which was saved last.
+	 * 
+	 * @param context
+	 *            Context the job was saved in
+	 * @param diskCache
+	 *            the TileDiskCache used by the WMSOverlay
+	 * @param handler
+	 *            Handler to be notified about the progress
+	 * @return the WMSSeeder, continuing where it was interrupted, or null if
+	 *         there is no unfinished job or the saved job is still running
+	 */
+	public static WMSSeeder restore(Context context, TileDiskCache diskCache,
+			Handler handler) {
+		if (getRunning() != null) {
+			return null;
+		}
+		SharedPreferences prefs = context.getSharedPreferences(PREFERENCES,
+				Context.MODE_PRIVATE);
+		String urls = prefs.getString(URLS, null);
+		if (urls == null) {
+			return null;
+		}
+		WMSSeeder seeder = new WMSSeeder(context, diskCache, handler, urls
+				.split("\n"), prefs.getInt(MIN_LAT, 0), prefs.getInt(
+				MIN_LON, 0), prefs.getInt(MAX_LAT, 0),
+				prefs.getInt(MAX_LON, 0), prefs.getInt(MIN_ZOOM, 0), prefs
+						.getInt(MAX_ZOOM, -1), prefs.getInt(META_TILE_SIZE, 1));
+		seeder.next = Math.min(prefs.getLong(CURSOR, 0), seeder.total);
+		seeder.done = seeder.next * seeder.getMapBaseURLs.length;
+		return seeder;
+	}
+
+	/**
+	 * @return the started job which has not terminated yet, or null
+	 */
+	public static synchronized WMSSeeder getRunning() {
+		return running;
+	}
+
+	/**
+	 * Replace the Handler to be notified, e.g. by an Activity which was
+	 * recreated while the job is running.
+	 * 
+	 * @param handler
+	 *            the new Handler or null to notify nobody
+	 */
+	public void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @return count of parts, or MetaTiles, of all layers
+	 */
+	public long getTotalParts() {
+		return total * getMapBaseURLs.length;
+	}
+
+	/**
+	 * @return count of parts, or MetaTiles, already processed
+	 */
+	public synchronized long getDoneParts() {
+		return done;
+	}
+
+	/**
+	 * @return count of parts, or MetaTiles, which could not be loaded
+	 */
+	public synchronized long getFailedParts() {
+		return failed;
+	}
+
+	/**
+	 * @return lowest zoom level to load
+	 */
+	public int getMinZoom() {
+		return minZoom;
+	}
+
+	/**
+	 * @return highest zoom level to load
+	 */
+	public int getMaxZoom() {
+		return maxZoom;
+	}
+
+	/**
+	 * Estimate the space the remaining parts will need in the TileDiskCache,
+	 * based on the average size of the stored parts.
+	 * 
+	 * @return size in bytes
+	 */
+	public long estimateSize() {
+		final int count = diskCache.count();
+		long average = count == 0 ? AVERAGE_PART_SIZE : diskCache.size()
+				/ count;
+		return (getTotalParts() - getDoneParts()) * average;
+	}
+
+	/**
+	 * Start the job and save it, so it may be restored if it is interrupted.
+	 * 
+	 * @param threads
+	 *            count of parts loaded at the same time
+	 */
+	public synchronized void start(int threads) {
+		synchronized (WMSSeeder.class) {
+			running = this;
+		}
+		save();
+		for (int i = 0; i < threads; i++) {
+			runningThreads++;
+			new Thread(new Worker(), DT + "-" + i).start();
+		}
+	}
+
+	/**
+	 * Cancel the job. It stays saved, so it may be restored.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			cancelled = true;
+		}
+		fetcher.abort();
+	}
+
+	/**
+	 * Forget the saved job.
+	 * 
+	 * @param context
+	 *            Context the job was saved in
+	 */
+	public static void discard(Context context) {
+		context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+				.remove(URLS).remove(CURSOR).commit();
+	}
+
+	private void save() {
+		StringBuffer urls = new StringBuffer();
+		for (String url : getMapBaseURLs) {
+			if (urls.length() > 0) {
+				urls.append('\n');
+			}
+			urls.append(url);
+		}
+		context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+				.putString(URLS, urls.toString()).putInt(MIN_LAT,
+						minLatitudeE6).putInt(MIN_LON, minLongitudeE6).putInt(
+						MAX_LAT, maxLatitudeE6).putInt(MAX_LON, maxLongitudeE6)
+				.putInt(MIN_ZOOM, minZoom).putInt(MAX_ZOOM, maxZoom).putInt(
+						META_TILE_SIZE, metaTileSize).putLong(CURSOR, next)
+				.commit();
+	}
+
+	/**
+	 * Save the index before which all requests are processed and loaded.
+	 */
+	private void saveCursor() {
+		long cursor;
+		synchronized (this) {
+			cursor = Math.min(next, firstFailed);
+			for (Long index : runningRequests) {
+				cursor = Math.min(cursor, index);
+			}
+		}
+		context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+				.putLong(CURSOR, cursor).commit();
+	}
+
+	/**
+	 * @return index of the next request or -1 if there is none
+	 */
+	private synchronized long take() {
+		if (cancelled || next >= total) {
+			return -1;
+		}
+		runningRequests.add(next);
+		return next++;
+	}
+
+	/**
+	 * Mark a request as processed and report the progress.
+	 * 
+	 * @param failedParts
+	 *            count of layers whose part could not be loaded
+	 */
+	private void complete(long index, int failedParts) {
+		boolean report;
+		boolean persist;
+		long doneNow;
+		synchronized (this) {
+			runningRequests.remove(index);
+			done += getMapBaseURLs.length;
+			if (failedParts > 0) {
+				failed += failedParts;
+				firstFailed = Math.min(firstFailed, index);
+			}
+			doneNow = done;
+			persist = (doneNow / getMapBaseURLs.length) % SAVE_INTERVAL == 0;
+			long now = SystemClock.uptimeMillis();
+			report = now - lastProgress >= PROGRESS_INTERVAL;
+			if (report) {
+				lastProgress = now;
+			}
+		}
+		if (persist) {
+			saveCursor();
+		}
+		if (report) {
+			sendProgress(doneNow);
+		}
+	}
+
+	private void sendProgress(long doneNow) {
+		/*
+		 * scaled to int, like a ProgressDialog needs it
+		 */
+		long all = getTotalParts();
+		int scale = (int) (all / Integer.MAX_VALUE + 1);
+		Handler h = handler;
+		if (h != null) {
+			h.sendMessage(h.obtainMessage(PROGRESS, (int) (doneNow / scale),
+					(int) (all / scale)));
+		}
+	}
+
+	/**
+	 * Called by every Worker when it terminates, the last one finishes the
+	 * job.
+	 */
+	private void terminate() {
+		boolean last;
+		boolean wasCancelled;
+		long failedNow;
+		synchronized (this) {
+			last = --runningThreads == 0;
+			wasCancelled = cancelled;
+			failedNow = failed;
+		}
+		if (!last) {
+			return;
+		}
+		diskCache.flush();
+		if (wasCancelled || failedNow > 0) {
+			/*
+			 * continuing the job loads the failed parts again
+			 */
+			saveCursor();
+		} else {
+			discard(context);
+		}
+		if (!wasCancelled) {
+			sendProgress(getTotalParts());
+		}
+		synchronized (WMSSeeder.class) {
+			if (running == this) {
+				running = null;
+			}
+		}
+		Handler h = handler;
+		if (h != null) {
+			if (wasCancelled) {
+				h.sendEmptyMessage(CANCELLED);
+			} else {
+				h.sendMessage(h.obtainMessage(FINISHED, (int) Math.min(
+						failedNow, Integer.MAX_VALUE), 0));
+			}
+		}
+	}
+
+	/**
+	 * Column or row of the global tile matrix containing a pixel.
+	 * 
+	 * @param pixels
+	 *            pixels from GeoPoint(0, 0)
+	 * @param size
+	 *            size of a part in pixels
+	 */
+	private static int tile(double pixels, int size, int zoom) {
+		return (int) Math.floor(pixels / size) + (1 << (zoom - 1));
+	}
+
+	/**
+	 * Load the part or MetaTile with the index for all layers.
+	 * 
+	 * @return count of layers whose part could not be loaded
+	 */
+	private int load(long index) {
+		int level = 0;
+		while (index >= (long) columns[level] * rows[level]) {
+			index -= (long) columns[level] * rows[level];
+			level++;
+		}
+		final int zoom = minZoom + level;
+		final int n = metaTileSize;
+		final int column = firstColumn[level] + (int) (index % columns[level])
+				* n;
+		final int row = firstRow[level] + (int) (index / columns[level]) * n;
+
+		final long key = n > 1 ? WMSUtils.metaTileKey(zoom, n, column, row)
+				: WMSUtils.partKey(zoom, column, row);
+
+		int failures = 0;
+		for (String getMapBaseURL : getMapBaseURLs) {
+			String cacheKey = WMSUtils.diskCacheKey(getMapBaseURL, key);
+			CacheHeaders stored = diskCache.getCacheHeaders(cacheKey);
+			if (stored != null && stored.isFresh()) {
+				diskCache.pin(cacheKey);
+				continue;
+			}
+			String url = n > 1 ? WMSUtils.generateGetMapURL(getMapBaseURL,
+					zoom, column, row, n, n) : WMSUtils.generateGetMapURL(
+					getMapBaseURL, zoom, column, row);
+			int startGeneration = fetcher.generation();
+			/*
+			 * a WMSLoader may load the same URL at the moment, it stores the
+			 * part as well
+			 */
+			InFlightRequests.Request shared = InFlightRequests.join(url);
+			boolean loaded = false;
+			try {
+				while (!shared.isLeader() && !shared.await()) {
+					shared = InFlightRequests.join(url);
+				}
+				if (shared.isLeader()) {
+					shared.complete(InFlightRequests.download(fetcher,
+							startGeneration, new URL(url), diskCache,
+							cacheKey, stored, Math.max(1, n * n)), null, null);
+				}
+				/*
+				 * stored by the seeder or by the WMSLoader it waited for,
+				 * unless the WMS returned no image
+				 */
+				loaded = shared.getData() != null
+						&& diskCache.getCacheHeaders(cacheKey) != null;
+			} catch (IOException e) {
+				if (fetcher.isAborted(startGeneration)) {
+					return failures;
+				}
+				Log.w(DT, "could not load " + url + ": " + e.getMessage());
+			} finally {
+				if (shared.isLeader()) {
+					shared.fail(fetcher.isAborted(startGeneration));
+				}
+				shared.release(false);
+			}
+			if (loaded) {
+				diskCache.pin(cacheKey);
+			} else {
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Processes requests until there are no more or the job is cancelled.
+	 * 
+	 * @author Mathias Menninghaus
+	 * 
+	 */
+	private class Worker implements Runnable {
+
+		public void run() {
+			try {
+				long index;
+				while ((index = take()) >= 0) {
+					boolean aborted = true;
+					int failures = 0;
+					try {
+						failures = load(index);
+						synchronized (WMSSeeder.this) {
+							aborted = cancelled;
+						}
+					} finally {
+						if (!aborted) {
+							complete(index, failures);
+						}
+					}
+				}
+			} finally {
+				terminate();
+			}
+		}
+	}
+}
@@ -15,10 +15,14 @@
  */
 package mmenning.mobilegis.map.wms;
 
-import android.graphics.Point;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.net.URLEncoder;
+
+import android.graphics.BitmapFactory;
+import android.os.Build;
 
 import com.google.android.maps.GeoPoint;
-import com.google.android.maps.Projection;
 
 /**
  * Util Class to supply often used methods and constants.
@@ -70,6 +74,17 @@ public class WMSUtils {
 	public static final int X = 0;
 	public static final int Y = 1;
 
+	/**
+	 * Latitude in degrees at which the mercator projection of the map ends
+	 */
+	public static final double MAXLatitude = 85.05112878;
+
+	/**
+	 * Half the circumference of the earth in meters of the spherical mercator
+	 * projection
+	 */
+	public static final double MERCATORExtent = 20037508.342789244;
+
 	/**
 	 * Required WMS Version
 	 */
@@ -81,19 +96,170 @@ public class WMSUtils {
 	public static final String ENCODING = "ISO-8859-1";
 
 	/**
-	 * Maximum of used Threads in a WMSLoader
+	 * Maximum of Threads used by all WMSLoaders together
+	 */
+	public static final int MAXTHREADS = 4;
+
+	/**
+	 * Maximum of Threads loading from the same host. The actual limit of a
+	 * host adapts to its latency and errors between 1 and this.
+	 */
+	public static final int MAXTHREADSPerHost = 4;
+
+	/**
+	 * Threads loading from a host before its latency and errors are known
+	 */
+	public static final int INITIALThreadsPerHost = 2;
+
+	/**
+	 * Milliseconds after which a GetMap request is considered slow, the
+	 * host gets fewer parallel requests then
+	 */
+	public static final int SLOWLatency = 4000;
+
+	/**
+	 * Milliseconds before a part is requested again after its first failure,
+	 * doubled with every further failure
+	 */
+	public static final int RETRYDelay = 2000;
+
+	/**
+	 * Maximum milliseconds before a failed part is requested again
+	 */
+	public static final int MAXRetryDelay = 5 * 60 * 1000;
+
+	/**
+	 * Connect and read timeout for GetMap requests in milliseconds
+	 */
+	public static final int TIMEOUT = 15000;
+
+	/**
+	 * Maximum bytes of the response to a GetMap request per part, a
+	 * MetaTile may have this for each of its parts. Larger responses are
+	 * aborted, as the server ignored the requested size.
+	 */
+	public static final int MAXPartBytes = 512 * 1024;
+
+	/**
+	 * The Bitmaps cached by all WMSLoaders together may use 1/x of the heap
+	 */
+	public static final int BitmapCacheMemoryFraction = 4;
+
+	/**
+	 * The flattened parts of all layers may use 1/x of the heap
+	 */
+	public static final int CompositeCacheMemoryFraction = 8;
+
+	/**
+	 * true if the parts of all layers are flattened into one Bitmap
+	 */
+	public static final boolean COMPOSITION = true;
+
+	/**
+	 * Maximum Bitmaps held for reuse after they were removed from the cache
+	 */
+	public static final int MAXPooledBitmaps = 8;
+
+	/**
+	 * Maximum size in bytes of all parts stored on the SDCard
+	 */
+	public static final long MAXDiskCacheSize = 32 * 1024 * 1024;
+
+	/**
+	 * Maximum milliseconds a stored part is used without revalidation if the
+	 * server did not tell how long it may be cached
+	 */
+	public static final long TILELifetime = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Count of part rings around the visible parts which will be prefetched
+	 */
+	public static final int PREFETCHRing = 1;
+
+	/**
+	 * true if the parts of the next higher and lower zoom level covering the
+	 * visible area will be prefetched to the SDCard
+	 */
+	public static final boolean PREFETCHZoomLevels = true;
+
+	/**
+	 * Milliseconds the scrolling of the map is extrapolated to predict the
+	 * viewport, parts near the predicted viewport are loaded first
+	 */
+	public static final int PREDICTIONHorizon = 1000;
+
+	/**
+	 * Count of parts per side of a {@link MetaTile}, 1 requests every part on
+	 * its own
+	 */
+	public static final int METATILESize = 3;
+
+	/**
+	 * Maximum count of parts per side of a {@link MetaTile}, limited by the
+	 * bits of its key
+	 */
+	public static final int MAXMetaTileSize = 7;
+
+	/**
+	 * Maximum count of layers whose parts can be told apart in a
+	 * {@link BitmapCache}, limited by the bits of the keys
+	 */
+	public static final int MAXLayers = 256;
+
+	/**
+	 * Count of lower zoom levels whose cached parts are scaled up to fill a
+	 * part which is not loaded yet, 0 disables the fallback
+	 */
+	public static final int FALLBACKLevels = 2;
+
+	/**
+	 * Count of parts a {@link WMSSeeder} loads at the same time
 	 */
-	public static final int MAXTHREADSPerLoader = 2;
+	public static final int SEEDThreads = 2;
 
 	/**
-	 * Maximum cached Bitmaps in a WMSLoader
+	 * Count of zoom levels above the current one which are stored for offline
+	 * use
 	 */
-	public static final int MAXStoredBitmapsPerLoader = 60;
+	public static final int SEEDZoomLevels = 2;
 
 	/**
-	 * Goal for cache size after cleaning up the Cache in a WMSLoader
+	 * GetMap formats for opaque layers, the most preferred first. JPEG is
+	 * several times smaller than PNG for photos.
 	 */
-	public static final int AVERAGEStoredBitmapsPerLoader = 40;
+	private static final String[] OPAQUEFormats = { "image/jpeg",
+			"image/png8", "image/png; mode=8bit", "image/png" };
+
+	/**
+	 * GetMap formats for transparent layers, the most preferred first.
+	 * Palette PNGs are smaller than full color ones, WebP is smaller still,
+	 * but BitmapFactory decodes transparent WebP only since Android 4.3.
+	 */
+	private static final String[] TRANSPARENTFormats = Build.VERSION.SDK_INT >= 18
+			? new String[] { "image/webp", "image/png8",
+					"image/png; mode=8bit", "image/png", "image/gif" }
+			: new String[] { "image/png8", "image/png; mode=8bit",
+					"image/png", "image/gif" };
+
+	/**
+	 * Choose the smallest suitable format for the GetMap request of a layer.
+	 * 
+	 * @param formats
+	 *            formats the WMS advertises in its capabilities, maybe empty
+	 * @param opaque
+	 *            true if the layer needs no transparency
+	 * @return one of the formats, image/png if none of them is suitable
+	 */
+	public static String chooseFormat(String[] formats, boolean opaque) {
+		for (String preferred : opaque ? OPAQUEFormats : TRANSPARENTFormats) {
+			for (String format : formats) {
+				if (format.trim().equalsIgnoreCase(preferred)) {
+					return format.trim();
+				}
+			}
+		}
+		return GetCapabilitiesHandler.PNGFORMAT;
+	}
 
 	private static String setLastSignMark(String s) {
 		if (s == null)
@@ -140,11 +306,49 @@ public class WMSUtils {
 	 */
 	public static String generateGetMapBaseURL(String baseURL, String[] layers,
 			String srs) {
+		return generateGetMapBaseURL(baseURL, layers, srs,
+				GetCapabilitiesHandler.PNGFORMAT, false);
+	}
+
+	/**
+	 * Append the basic getMap request (without BoundingBox) to a URL like
+	 * {@link #generateGetMapBaseURL(String, String[], String)}, but with the
+	 * given image format.
+	 * 
+	 * @param baseURL
+	 *            URL to be appended
+	 * @param layers
+	 *            String Array where all Layers to be displayed are listed
+	 * @param srs
+	 *            the SRS (EPSG-Code) for the getMap request
+	 * @param format
+	 *            MIME type of the images, see
+	 *            {@link #chooseFormat(String[], boolean)}
+	 * @param opaque
+	 *            true if the layer needs no transparency
+	 * @return getMap URL without BoundingBox request.
+	 */
+	public static String generateGetMapBaseURL(String baseURL,
+			String[] layers, String srs, String format, boolean opaque) {
 
 		StringBuffer buf = new StringBuffer();
 		buf.append(setLastSignMark(baseURL));
-		buf.append("TRANSPARENT=true");
-		buf.append("&FORMAT=image/png");
+		buf.append("TRANSPARENT=" + !opaque);
+		/*
+		 * formats may have parameters, e.g. "image/png; mode=8bit"
+		 */
+		String encodedFormat;
+		try {
+			encodedFormat = URLEncoder.encode(format, ENCODING).replace("%2F",
+					"/");
+		} catch (UnsupportedEncodingException e) {
+			/*
+			 * every platform supports ISO-8859-1, formats without parameters
+			 * are valid anyway
+			 */
+			encodedFormat = format;
+		}
+		buf.append("&FORMAT=" + encodedFormat);
 		buf.append("&SERVICE=WMS");
 		buf.append("&REQUEST=GetMap");
 		buf.append("&STYLES=");
@@ -162,40 +366,420 @@ public class WMSUtils {
 	}
 
 	/**
-	 * Generate an URL for a GetMap request.
+	 * Replace the value of a request parameter. The parameter will be
+	 * appended if the URL does not contain it.
+	 * 
+	 * @param url
+	 *            URL with request parameters
+	 * @param name
+	 *            name of the parameter, case sensitive
+	 * @param value
+	 *            new value
+	 * @return the URL with the new value
+	 */
+	public static String setParameter(String url, String name, String value) {
+		int start = url.indexOf("&" + name + "=");
+		if (start < 0) {
+			start = url.indexOf("?" + name + "=");
+		}
+		if (start < 0) {
+			if (url.indexOf('?') >= 0 && !url.endsWith("&")
+					&& !url.endsWith("?")) {
+				url = url + "&";
+			}
+			return setLastSignMark(url) + name + "=" + value;
+		}
+		start += name.length() + 2;
+		int end = url.indexOf('&', start);
+		if (end < 0) {
+			end = url.length();
+		}
+		return url.substring(0, start) + value + url.substring(end);
+	}
+
+	/**
+	 * Integer division rounding towards negative infinity.
+	 * 
+	 * @param a
+	 *            dividend
+	 * @param b
+	 *            positive divisor
+	 * @return largest integer less than or equal to a/b
+	 */
+	public static int floorDiv(int a, int b) {
+		return a >= 0 ? a / b : -((-a + b - 1) / b);
+	}
+
+	/**
+	 * Check whether the data is an image BitmapFactory can decode, without
+	 * decoding its pixels. Servers may answer with an XML exception instead of
+	 * an image.
+	 * 
+	 * @param data
+	 *            encoded image
+	 * @return true if the bounds of the image could be decoded
+	 */
+	public static boolean isImage(byte[] data) {
+		if (data == null) {
+			return false;
+		}
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+		return opts.outWidth > 0 && opts.outHeight > 0;
+	}
+
+	/*
+	 * bits of a key from the highest to the lowest: layer (8), zoom level
+	 * (5), MetaTile size (3), column (24) and row (24). Columns and rows are
+	 * stored in two's complement, so the parts next to the edges of the
+	 * world keep definite keys.
+	 */
+	private static final int KEY_LAYER_SHIFT = 56;
+	private static final int KEY_ZOOM_SHIFT = 51;
+	private static final int KEY_SIZE_SHIFT = 48;
+	private static final int KEY_COLUMN_SHIFT = 24;
+	private static final long KEY_COORDINATE_MASK = (1L << 24) - 1;
+
+	/**
+	 * Key of a part in the global tile matrix of the spherical mercator
+	 * projection (EPSG:3857). It only depends on the zoom level, column and
+	 * row, so the same part has the same key on every device. The key is a
+	 * primitive, so looking up a part allocates nothing.
+	 * 
+	 * @param zoom
+	 *            zoom level of the map, at most 31
+	 * @param column
+	 *            column of the part, counted from 180 degrees west
+	 * @param row
+	 *            row of the part, counted from the north
+	 * @return definite identifier of the part
+	 */
+	public static long partKey(int zoom, int column, int row) {
+		return ((long) zoom << KEY_ZOOM_SHIFT)
+				| ((column & KEY_COORDINATE_MASK) << KEY_COLUMN_SHIFT)
+				| (row & KEY_COORDINATE_MASK);
+	}
+
+	/**
+	 * Key of a {@link MetaTile} in the global tile matrix. It differs from
+	 * the key of its top-left part.
+	 * 
+	 * @param zoom
+	 *            zoom level of the map
+	 * @param size
+	 *            count of parts per side, at most {@link #MAXMetaTileSize}
+	 * @param column
+	 *            column of the top-left part
+	 * @param row
+	 *            row of the top-left part
+	 * @return definite identifier of the MetaTile
+	 */
+	public static long metaTileKey(int zoom, int size, int column, int row) {
+		return partKey(zoom, column, row) | ((long) size << KEY_SIZE_SHIFT);
+	}
+
+	/**
+	 * Key of a part of a single layer, so the parts of all layers can share
+	 * one {@link BitmapCache}.
+	 * 
+	 * @param layer
+	 *            definite identifier of the layer, less than
+	 *            {@link #MAXLayers}
+	 * @param key
+	 *            key of the part
+	 * @return definite identifier of the part of the layer
+	 */
+	public static long layerKey(int layer, long key) {
+		return key | ((long) layer << KEY_LAYER_SHIFT);
+	}
+
+	/**
+	 * @param key
+	 *            key of a part of a layer, see {@link #layerKey(int, long)}
+	 * @return definite identifier of the layer
+	 */
+	public static int keyLayer(long key) {
+		return (int) (key >>> KEY_LAYER_SHIFT);
+	}
+
+	/**
+	 * @param key
+	 *            key of a part or MetaTile
+	 * @return zoom level of the part
+	 */
+	public static int keyZoom(long key) {
+		return (int) (key >>> KEY_ZOOM_SHIFT) & 0x1F;
+	}
+
+	/**
+	 * @param key
+	 *            key of a part or MetaTile
+	 * @return column of the (top-left) part
+	 */
+	public static int keyColumn(long key) {
+		return (int) ((key << 16) >> 40);
+	}
+
+	/**
+	 * @param key
+	 *            key of a part or MetaTile
+	 * @return row of the (top-left) part
+	 */
+	public static int keyRow(long key) {
+		return (int) ((key << 40) >> 40);
+	}
+
+	/**
+	 * @param key
+	 *            key of a part or MetaTile
+	 * @return count of parts per side of the MetaTile, 0 for a single part
+	 */
+	public static int keyMetaTileSize(long key) {
+		return (int) (key >>> KEY_SIZE_SHIFT) & 0x7;
+	}
+
+	/**
+	 * Readable form of a key without its layer, "zoom/column/row" for a
+	 * part and "zoom/mSize/column/row" for a MetaTile.
+	 * 
+	 * @param key
+	 *            key of a part or MetaTile
+	 * @return the key as String
+	 */
+	public static String keyToString(long key) {
+		final int size = keyMetaTileSize(key);
+		return keyZoom(key) + (size > 0 ? "/m" + size + "/" : "/")
+				+ keyColumn(key) + "/" + keyRow(key);
+	}
+
+	/**
+	 * Column of a part in the z/x/y scheme of tile containers and tile
+	 * servers, counted from 180 degrees west.
+	 * 
+	 * @param zoom
+	 *            zoom level of the map, at least 1
+	 * @param x
+	 *            identifier of the part as used by {@link WMSOverlay}
+	 * @return column of the tile
+	 */
+	public static int tileColumn(int zoom, int x) {
+		return x + (1 << (zoom - 1));
+	}
+
+	/**
+	 * Row of a part in the z/x/y scheme of tile containers and tile servers,
+	 * counted from the north.
+	 * 
+	 * @param zoom
+	 *            zoom level of the map, at least 1
+	 * @param y
+	 *            identifier of the part as used by {@link WMSOverlay}
+	 * @return row of the tile
+	 */
+	public static int tileRow(int zoom, int y) {
+		return (1 << (zoom - 1)) - y;
+	}
+
+	/**
+	 * Check whether an SRS is the spherical mercator projection of the map,
+	 * its coordinates are meters then.
+	 * 
+	 * @param srs
+	 *            EPSG code
+	 * @return true for EPSG:3857 and its former codes
+	 */
+	public static boolean isMercator(String srs) {
+		return idealSRS.equalsIgnoreCase(srs)
+				|| "EPSG:900913".equalsIgnoreCase(srs)
+				|| "EPSG:3785".equalsIgnoreCase(srs);
+	}
+
+	/**
+	 * Calculate the BoundingBox of a block of parts in the global tile
+	 * matrix. Only depends on the arguments, not on the screen.
+	 * 
+	 * @param srs
+	 *            SRS of the request, the BoundingBox is given in meters for
+	 *            {@link #isMercator(String)}, else in degrees
+	 * @param zoom
+	 *            zoom level of the map
+	 * @param column
+	 *            column of the top-left part
+	 * @param row
+	 *            row of the top-left part
+	 * @param columns
+	 *            count of parts from west to east
+	 * @param rows
+	 *            count of parts from north to south
+	 * @return minx,miny,maxx,maxy as used by the BBOX parameter
+	 */
+	public static String tileBoundingBox(String srs, int zoom, int column,
+			int row, int columns, int rows) {
+		final double tiles = 1L << zoom;
+		if (isMercator(srs)) {
+			final double span = 2 * MERCATORExtent / tiles;
+			return coordinate(column * span - MERCATORExtent, 2) + ","
+					+ coordinate(MERCATORExtent - (row + rows) * span, 2) + ","
+					+ coordinate((column + columns) * span - MERCATORExtent, 2)
+					+ "," + coordinate(MERCATORExtent - row * span, 2);
+		}
+		return coordinate(column / tiles * 360 - 180, 7) + ","
+				+ coordinate(rowToLatitude((row + rows) / tiles), 7) + ","
+				+ coordinate((column + columns) / tiles * 360 - 180, 7) + ","
+				+ coordinate(rowToLatitude(row / tiles), 7);
+	}
+
+	/**
+	 * @param fraction
+	 *            distance from the north border of the map, 0 to 1
+	 * @return latitude in degrees
+	 */
+	private static double rowToLatitude(double fraction) {
+		return Math.toDegrees(Math.atan(sinh(Math.PI * (1 - 2 * fraction))));
+	}
+
+	/**
+	 * Format a coordinate without exponent and with a fixed count of
+	 * decimals, so the same BoundingBox always gives the same URL.
+	 */
+	private static String coordinate(double value, int decimals) {
+		return BigDecimal.valueOf(value).setScale(decimals,
+				BigDecimal.ROUND_HALF_UP).toPlainString();
+	}
+
+	/**
+	 * Generate an URL for a GetMap request of a part in the global tile
+	 * matrix.
 	 * 
 	 * @param getMapBaseURL
 	 *            base GetMap request without Bounding Box
-	 * @param ll
-	 *            LowerLeft Corner
-	 * @param ur
-	 *            UpperRight Corner
-	 * @return the complete GetMapURL to start a GetMAp request.
+	 * @param zoom
+	 *            zoom level of the map
+	 * @param column
+	 *            column of the part
+	 * @param row
+	 *            row of the part
+	 * @return the complete GetMapURL to start a GetMap request.
 	 */
-	public static String generateGetMapURL(String getMapBaseURL, GeoPoint ll,
-			GeoPoint ur) {
-		return getMapBaseURL + "&BBOX=" + longitude(ll) + "," + latitude(ll)
-				+ "," + longitude(ur) + "," + latitude(ur);
+	public static String generateGetMapURL(String getMapBaseURL, int zoom,
+			int column, int row) {
+		return getMapBaseURL
+				+ "&BBOX="
+				+ tileBoundingBox(getParameter(getMapBaseURL, "SRS"), zoom,
+						column, row, 1, 1);
 	}
 
 	/**
-	 * Calculates the BoundingBox for the given top-left screen coordinate and
-	 * the given Projection. The BoundingBox will have WIDTH and HEIGHT in
-	 * screen pixels.
+	 * Generate an URL for a GetMap request of a block of parts in the global
+	 * tile matrix, e.g. for a {@link MetaTile}.
 	 * 
-	 * @param left
-	 *            left border in screen pixels
-	 * @param top
-	 *            top border in screen pixels
-	 * @param p
-	 *            Projection to Project from ScreenPixels in GeoPoints
-	 * @return a GeoPoint[] with entries LOWERLEFT and UPPERRIGHT
+	 * @param getMapBaseURL
+	 *            base GetMap request without Bounding Box
+	 * @param zoom
+	 *            zoom level of the map
+	 * @param column
+	 *            column of the top-left part
+	 * @param row
+	 *            row of the top-left part
+	 * @param columns
+	 *            count of parts from west to east
+	 * @param rows
+	 *            count of parts from north to south
+	 * @return the complete GetMapURL to start a GetMap request.
+	 */
+	public static String generateGetMapURL(String getMapBaseURL, int zoom,
+			int column, int row, int columns, int rows) {
+		String base = setParameter(getMapBaseURL, "WIDTH", Integer
+				.toString(WIDTH * columns));
+		base = setParameter(base, "HEIGHT", Integer.toString(HEIGHT * rows));
+		return base
+				+ "&BBOX="
+				+ tileBoundingBox(getParameter(getMapBaseURL, "SRS"), zoom,
+						column, row, columns, rows);
+	}
+
+	/**
+	 * Get the value of a request parameter.
+	 * 
+	 * @param url
+	 *            URL with request parameters
+	 * @param name
+	 *            name of the parameter, case sensitive
+	 * @return the value or null if the URL does not contain the parameter
+	 */
+	public static String getParameter(String url, String name) {
+		int start = url.indexOf("&" + name + "=");
+		if (start < 0) {
+			start = url.indexOf("?" + name + "=");
+		}
+		if (start < 0) {
+			return null;
+		}
+		start += name.length() + 2;
+		int end = url.indexOf('&', start);
+		return url.substring(start, end < 0 ? url.length() : end);
+	}
+
+	/**
+	 * Size of the whole world in screen pixels at a zoom level of the map.
+	 * Zoom level 1 shows the world with 512 pixels, every further level
+	 * doubles it.
+	 * 
+	 * @param zoom
+	 *            zoom level of the map
+	 * @return size in pixels
+	 */
+	public static double worldSize(int zoom) {
+		return 256.0 * (1L << zoom);
+	}
+
+	/**
+	 * Screen pixels east of GeoPoint(0, 0) at a zoom level.
+	 * 
+	 * @param longitudeE6
+	 *            longitude in microdegrees
+	 * @param zoom
+	 *            zoom level of the map
+	 * @return pixels, negative for the western hemisphere
+	 */
+	public static double longitudeToPixels(int longitudeE6, int zoom) {
+		return longitudeE6 / 1E6 / 360 * worldSize(zoom);
+	}
+
+	/**
+	 * Screen pixels south of GeoPoint(0, 0) at a zoom level, following the
+	 * spherical mercator projection of the map.
+	 * 
+	 * @param latitudeE6
+	 *            latitude in microdegrees, cut to +-MAXLatitude
+	 * @param zoom
+	 *            zoom level of the map
+	 * @return pixels, negative for the northern hemisphere
+	 */
+	public static double latitudeToPixels(int latitudeE6, int zoom) {
+		double lat = Math.toRadians(Math.max(-MAXLatitude, Math.min(
+				MAXLatitude, latitudeE6 / 1E6)));
+		return -Math.log(Math.tan(Math.PI / 4 + lat / 2)) / (2 * Math.PI)
+				* worldSize(zoom);
+	}
+
+	private static double sinh(double x) {
+		return (Math.exp(x) - Math.exp(-x)) / 2;
+	}
+
+	/**
+	 * Key of a part of a getMapBaseURL in the TileDiskCache. Contains the
+	 * getMapBaseURL, so parts of different WMS will not be mixed up.
+	 * 
+	 * @param getMapBaseURL
+	 *            base GetMap request the part is loaded with
+	 * @param key
+	 *            identifier of the part or MetaTile
+	 * @return key for the TileDiskCache
 	 */
-	public static GeoPoint[] corners(int left, int top, Projection p) {
-		GeoPoint[] ret = new GeoPoint[2];
-		ret[LOWERLEFT] = p.fromPixels(left, top + HEIGHT);
-		ret[UPPERRIGHT] = p.fromPixels(left + WIDTH, top);
-		return ret;
+	public static String diskCacheKey(String getMapBaseURL, long key) {
+		return getMapBaseURL + "#" + keyToString(key);
 	}
 
 	/**
@@ -219,27 +803,4 @@ public class WMSUtils {
 	public static String latitude(GeoPoint p) {
 		return Float.toString((float) p.getLatitudeE6() / (float) 1E6);
 	}
-
-	/**
-	 * Calculate the Pixel Distance of to GeoPoints using the given Projection.
-	 * (a-b)
-	 * 
-	 * @param a
-	 *            first GeoPoint
-	 * @param b
-	 *            second GeoPoint
-	 * @param p
-	 *            Projection as basis for the calculation
-	 * @return pixel Distance in X(a.x-b.x) and Y(a.y-b.y) Direction.
-	 */
-	public static int[] pixelDistance(GeoPoint a, GeoPoint b, Projection p) {
-		int[] ret = new int[2];
-		Point apx = new Point();
-		Point bpx = new Point();
-		p.toPixels(a, apx);
-		p.toPixels(b, bpx);
-		ret[X] = apx.x - bpx.x;
-		ret[Y] = apx.y - bpx.y;
-		return ret;
-	}
 }
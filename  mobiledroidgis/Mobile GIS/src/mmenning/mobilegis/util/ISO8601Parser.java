@@ -0,0 +1,267 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.util;
+
+import java.text.ParseException;
+
+/**
+ * Parses ISO 8601 timestamps to milliseconds since 01.01.1970 00:00 GMT
+ * without allocating anything, unless the timestamp is invalid.
+ * 
+ * Accepted is a date (yyyy-MM-dd), followed by 'T' or a space, a time (HH:mm,
+ * HH:mm:ss or HH:mm:ss with any count of fractional digits) and a zone ('Z',
+ * +HH, +HHmm or +HH:mm). Timestamps without time or zone are rejected like
+ * by SimpleDateFormat with a zone in its pattern, because their local time
+ * is that of the server, which is unknown.
+ * 
+ * The timestamps of a response mostly share the same date, so the
+ * milliseconds of the last parsed date are cached.
+ * 
+ * A ISO8601Parser is not thread safe, every parsing thread should use its
+ * own.
+ * 
+ * @author Mathias Menninghaus
+ * @version 15.11.2009
+ * 
+ */
+public class ISO8601Parser {
+
+	private static final String DT = "ISO8601Parser";
+
+	private static final int DATE_LENGTH = 10;
+
+	private static final long SECOND = 1000;
+	private static final long MINUTE = 60 * SECOND;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	/**
+	 * the date of the last parsed timestamp, empty if nothing was parsed yet
+	 */
+	private final char[] lastDate = new char[DATE_LENGTH];
+	private boolean cached;
+	private long lastDateMillis;
+
+	/**
+	 * Parse a timestamp.
+	 * 
+	 * @param s
+	 *            the timestamp, leading and trailing whitespace is ignored
+	 * @return milliseconds since 01.01.1970 00:00 GMT
+	 * @throws ParseException
+	 *             if s is no valid timestamp
+	 */
+	public long parse(CharSequence s) throws ParseException {
+		return parse(s, 0, s.length());
+	}
+
+	/**
+	 * Parse a timestamp which is part of a larger CharSequence.
+	 * 
+	 * @param s
+	 * @param start
+	 *            index of the first char of the timestamp
+	 * @param end
+	 *            index after the last char of the timestamp
+	 * @return milliseconds since 01.01.1970 00:00 GMT
+	 * @throws ParseException
+	 *             if s is no valid timestamp
+	 */
+	public long parse(CharSequence s, int start, int end)
+			throws ParseException {
+		while (start < end && s.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && s.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (end - start < DATE_LENGTH) {
+			throw error(s, start, end, end);
+		}
+
+		long millis = dateMillis(s, start, end);
+		int i = start + DATE_LENGTH;
+		if (i == end) {
+			throw error(s, start, end, i);
+		}
+		char c = s.charAt(i);
+		if (c != 'T' && c != 't' && c != ' ') {
+			throw error(s, start, end, i);
+		}
+		i++;
+
+		/*
+		 * time
+		 */
+		millis += digits(s, start, end, i, 2, 23) * HOUR;
+		i += 2;
+		expect(s, start, end, i++, ':');
+		millis += digits(s, start, end, i, 2, 59) * MINUTE;
+		i += 2;
+		if (i < end && s.charAt(i) == ':') {
+			millis += digits(s, start, end, i + 1, 2, 60) * SECOND;
+			i += 3;
+			if (i < end && (s.charAt(i) == '.' || s.charAt(i) == ',')) {
+				i++;
+				final int first = i;
+				int fraction = 0;
+				int scale = 1000;
+				while (i < end && isDigit(s.charAt(i))) {
+					if (scale > 1) {
+						scale /= 10;
+						fraction += (s.charAt(i) - '0') * scale;
+					}
+					i++;
+				}
+				if (i == first) {
+					throw error(s, start, end, i);
+				}
+				millis += fraction;
+			}
+		}
+
+		/*
+		 * zone
+		 */
+		if (i == end) {
+			throw error(s, start, end, i);
+		}
+		c = s.charAt(i);
+		if ((c == 'Z' || c == 'z') && i + 1 == end) {
+			return millis;
+		}
+		if (c != '+' && c != '-') {
+			throw error(s, start, end, i);
+		}
+		i++;
+		long offset = digits(s, start, end, i, 2, 23) * HOUR;
+		i += 2;
+		final boolean colon = i < end && s.charAt(i) == ':';
+		if (colon) {
+			i++;
+		}
+		/*
+		 * minutes are optional, but not after a colon
+		 */
+		if (colon || i < end) {
+			offset += digits(s, start, end, i, 2, 59) * MINUTE;
+			i += 2;
+		}
+		if (i != end) {
+			throw error(s, start, end, i);
+		}
+		return c == '+' ? millis - offset : millis + offset;
+	}
+
+	/**
+	 * Milliseconds of the date at start, from the cache if it is the same as
+	 * the last one.
+	 */
+	private long dateMillis(CharSequence s, int start, int end)
+			throws ParseException {
+		if (cached) {
+			int i = 0;
+			while (i < DATE_LENGTH && lastDate[i] == s.charAt(start + i)) {
+				i++;
+			}
+			if (i == DATE_LENGTH) {
+				return lastDateMillis;
+			}
+		}
+
+		final int year = digits(s, start, end, start, 4, 9999);
+		expect(s, start, end, start + 4, '-');
+		final int month = digits(s, start, end, start + 5, 2, 12);
+		expect(s, start, end, start + 7, '-');
+		final int day = digits(s, start, end, start + 8, 2, 31);
+		if (month == 0 || day == 0) {
+			throw error(s, start, end, start + 5);
+		}
+
+		lastDateMillis = daysSinceEpoch(year, month, day) * DAY;
+		for (int i = 0; i < DATE_LENGTH; i++) {
+			lastDate[i] = s.charAt(start + i);
+		}
+		cached = true;
+		return lastDateMillis;
+	}
+
+	/**
+	 * Days from 01.01.1970 to the given date of the proleptic gregorian
+	 * calendar.
+	 * 
+	 * @param year
+	 * @param month
+	 *            1 to 12
+	 * @param day
+	 *            1 to 31
+	 * @return days, negative before 1970
+	 */
+	public static long daysSinceEpoch(int year, int month, int day) {
+		/*
+		 * count years from march, so the leap day is the last day of a year
+		 */
+		if (month <= 2) {
+			year--;
+		}
+		final int era = (year >= 0 ? year : year - 399) / 400;
+		final int yearOfEra = year - era * 400;
+		final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2)
+				/ 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	/**
+	 * Read count digits at index i.
+	 */
+	private static int digits(CharSequence s, int start, int end, int i,
+			int count, int max) throws ParseException {
+		if (i + count > end) {
+			throw error(s, start, end, end);
+		}
+		int ret = 0;
+		for (int j = i; j < i + count; j++) {
+			char c = s.charAt(j);
+			if (!isDigit(c)) {
+				throw error(s, start, end, j);
+			}
+			ret = ret * 10 + c - '0';
+		}
+		if (ret > max) {
+			throw error(s, start, end, i);
+		}
+		return ret;
+	}
+
+	private static void expect(CharSequence s, int start, int end, int i,
+			char c) throws ParseException {
+		if (i >= end || s.charAt(i) != c) {
+			throw error(s, start, end, i);
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static ParseException error(CharSequence s, int start, int end,
+			int i) {
+		return new ParseException("Unparseable date: \""
+				+ s.subSequence(start, end) + "\"", i - start);
+	}
+}
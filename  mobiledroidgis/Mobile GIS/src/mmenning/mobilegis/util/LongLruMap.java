@@ -0,0 +1,431 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.util;
+
+/**
+ * Caches values by a primitive long key and removes the least recently used
+ * ones if the size of the cached values exceeds a limit.
+ * 
+ * The entries are stored in an open addressing hash table with linear
+ * probing. They are linked in access order by their slots in primitive
+ * arrays, the eldest first, so get, insert and the update of the access
+ * order take constant time and neither of them allocates anything.
+ * 
+ * The size of a single value is measured by a {@link Weigher}, which counts
+ * every value as 1 by default. So by default the limits are counts of cached
+ * values. Values removed by cleaning up or clearing are handed over to an
+ * {@link EvictionListener}, e.g. to release their resources.
+ * 
+ * @author Mathias Menninghaus
+ * @version 23.10.2009
+ * 
+ * @param <V>
+ *            Value Type
+ */
+public class LongLruMap<V> {
+
+	private static final String DT = "LongLruMap";
+
+	/**
+	 * Measures the size of the cached values.
+	 * 
+	 * @param <V>
+	 *            Value Type
+	 */
+	public interface Weigher<V> {
+		/**
+		 * Size of a single value. Must not change while the value is cached.
+		 * 
+		 * @param value
+		 * @return size of the value
+		 */
+		int sizeOf(V value);
+	}
+
+	/**
+	 * Notified about values which are removed from the map by cleaning up or
+	 * clearing.
+	 * 
+	 * @param <V>
+	 *            Value Type
+	 */
+	public interface EvictionListener<V> {
+		/**
+		 * Called with the lock of the map held, so it must not access the map.
+		 * 
+		 * @param key
+		 * @param value
+		 *            the removed value
+		 * @param evicted
+		 *            true if it was removed by cleaning up, false if the map
+		 *            was cleared
+		 */
+		void onRemove(long key, V value, boolean evicted);
+	}
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * slots of the hash table, a slot is free if its value is null
+	 */
+	private long[] keys;
+	private Object[] values;
+
+	/**
+	 * slot of the previous and the next entry in access order, -1 if there
+	 * is none
+	 */
+	private int[] before;
+	private int[] after;
+
+	private int eldest = -1;
+	private int youngest = -1;
+
+	/**
+	 * capacity - 1, the capacity is a power of two
+	 */
+	private int mask;
+
+	/**
+	 * 64 - log2(capacity), to take the highest bits of the hash
+	 */
+	private int shift;
+
+	private int count;
+
+	private final long maxSize;
+	private final long maxToleratedSize;
+
+	private long size;
+
+	private final Weigher<? super V> weigher;
+	private final EvictionListener<? super V> listener;
+
+	private int hitCount;
+	private int missCount;
+	private int evictionCount;
+
+	/**
+	 * Instantiate a new LongLruMap which limits the count of values.
+	 * 
+	 * @param maxSize
+	 *            maximum count of values after cleaning up
+	 * @param maxToleratedSize
+	 *            maximum count of values without cleaning up, if it is
+	 *            reached cleanUP will be called.
+	 */
+	public LongLruMap(long maxSize, long maxToleratedSize) {
+		this(maxSize, maxToleratedSize, null, null);
+	}
+
+	/**
+	 * Instantiate a new LongLruMap
+	 * 
+	 * @param maxSize
+	 *            maximum size of values after cleaning up
+	 * @param maxToleratedSize
+	 *            maximum size of values without cleaning up, if it is reached
+	 *            cleanUP will be called.
+	 * @param weigher
+	 *            measures the values, null to count them
+	 * @param listener
+	 *            notified about removed values, may be null
+	 */
+	public LongLruMap(long maxSize, long maxToleratedSize,
+			Weigher<? super V> weigher, EvictionListener<? super V> listener) {
+		this.maxSize = maxSize;
+		this.maxToleratedSize = maxToleratedSize;
+		this.weigher = weigher;
+		this.listener = listener;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Query whether the map contains the key or not without changing its
+	 * position in the access order
+	 * 
+	 * @param key
+	 * @return true if it contains the key, else false
+	 */
+	public synchronized boolean contains(long key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Get the value and mark it as the most recently used
+	 * 
+	 * @param key
+	 * @return the value that belongs to the key or null
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V getWithUpdate(long key) {
+		final int slot = find(key);
+		if (slot < 0) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		touch(slot);
+		return (V) values[slot];
+	}
+
+	/**
+	 * Insert as the most recently used. If the map already contains this key
+	 * nothing will happen.
+	 * 
+	 * @param key
+	 * @param value
+	 *            not null
+	 */
+	public synchronized void insertWithoutUpdate(long key, V value) {
+		if (find(key) >= 0) {
+			return;
+		}
+		if ((count + 1) * 4 > (mask + 1) * 3) {
+			resize();
+		}
+		int slot = home(key);
+		while (values[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		linkYoungest(slot);
+		count++;
+		size += sizeOf(value);
+		if (size >= maxToleratedSize) {
+			cleanUP();
+		}
+	}
+
+	/**
+	 * Remove a value without notifying the EvictionListener.
+	 * 
+	 * @param key
+	 * @return the removed value or null if the map did not contain the key
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(long key) {
+		final int slot = find(key);
+		if (slot < 0) {
+			return null;
+		}
+		final V value = (V) values[slot];
+		free(slot);
+		size -= sizeOf(value);
+		return value;
+	}
+
+	/**
+	 * Remove the least recently used values until they fit into maxSize
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void cleanUP() {
+		while (size > maxSize && eldest >= 0) {
+			final long key = keys[eldest];
+			final V value = (V) values[eldest];
+			free(eldest);
+			size -= sizeOf(value);
+			evictionCount++;
+			if (listener != null) {
+				listener.onRemove(key, value, true);
+			}
+		}
+	}
+
+	/**
+	 * Wipes out all values
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void clear() {
+		for (int slot = eldest; slot >= 0; slot = after[slot]) {
+			if (listener != null) {
+				listener.onRemove(keys[slot], (V) values[slot], false);
+			}
+			values[slot] = null;
+		}
+		eldest = -1;
+		youngest = -1;
+		count = 0;
+		size = 0;
+	}
+
+	/**
+	 * Get the current size of all cached values.
+	 * 
+	 * @return sum of the sizes of all values
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * @return count of cached values
+	 */
+	public synchronized int count() {
+		return count;
+	}
+
+	/**
+	 * @return count of getWithUpdate calls which returned a value
+	 */
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return count of getWithUpdate calls which returned null
+	 */
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return count of values removed by cleaning up
+	 */
+	public synchronized int getEvictionCount() {
+		return evictionCount;
+	}
+
+	private int sizeOf(V value) {
+		return weigher == null ? 1 : weigher.sizeOf(value);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		before = new int[capacity];
+		after = new int[capacity];
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	/**
+	 * first slot to probe for the key, the key is spread by a multiplicative
+	 * hash since keys often differ in their lowest bits only
+	 */
+	private int home(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	/**
+	 * @return slot of the key or -1 if it is not cached
+	 */
+	private int find(long key) {
+		int slot = home(key);
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Move an entry to the end of the access order.
+	 */
+	private void touch(int slot) {
+		if (slot != youngest) {
+			unlink(slot);
+			linkYoungest(slot);
+		}
+	}
+
+	private void linkYoungest(int slot) {
+		before[slot] = youngest;
+		after[slot] = -1;
+		if (youngest >= 0) {
+			after[youngest] = slot;
+		} else {
+			eldest = slot;
+		}
+		youngest = slot;
+	}
+
+	private void unlink(int slot) {
+		if (before[slot] >= 0) {
+			after[before[slot]] = after[slot];
+		} else {
+			eldest = after[slot];
+		}
+		if (after[slot] >= 0) {
+			before[after[slot]] = before[slot];
+		} else {
+			youngest = before[slot];
+		}
+	}
+
+	/**
+	 * Free a slot. The following entries of the same probe sequence are
+	 * shifted back, so lookups never need to skip deleted slots.
+	 */
+	private void free(int slot) {
+		unlink(slot);
+		values[slot] = null;
+		count--;
+		int hole = slot;
+		for (int i = (slot + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			if (((i - home(keys[i])) & mask) >= ((i - hole) & mask)) {
+				move(i, hole);
+				hole = i;
+			}
+		}
+	}
+
+	/**
+	 * Move an entry to a free slot and keep its position in the access order.
+	 */
+	private void move(int from, int to) {
+		keys[to] = keys[from];
+		values[to] = values[from];
+		before[to] = before[from];
+		after[to] = after[from];
+		if (before[to] >= 0) {
+			after[before[to]] = to;
+		} else {
+			eldest = to;
+		}
+		if (after[to] >= 0) {
+			before[after[to]] = to;
+		} else {
+			youngest = to;
+		}
+		values[from] = null;
+	}
+
+	/**
+	 * Double the capacity and insert all entries again in access order.
+	 */
+	private void resize() {
+		final long[] oldKeys = keys;
+		final Object[] oldValues = values;
+		final int[] oldAfter = after;
+		int slot = eldest;
+		allocate((mask + 1) * 2);
+		eldest = -1;
+		youngest = -1;
+		for (; slot >= 0; slot = oldAfter[slot]) {
+			int target = home(oldKeys[slot]);
+			while (values[target] != null) {
+				target = (target + 1) & mask;
+			}
+			keys[target] = oldKeys[slot];
+			values[target] = oldValues[slot];
+			linkYoungest(target);
+		}
+	}
+}